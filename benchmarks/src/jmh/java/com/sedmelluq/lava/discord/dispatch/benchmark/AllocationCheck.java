@@ -0,0 +1,247 @@
+package com.sedmelluq.lava.discord.dispatch.benchmark;
+
+import com.sedmelluq.lava.discord.dispatch.AudioSendSystem;
+import com.sedmelluq.lava.discord.dispatch.OpusFrameProvider;
+import com.sedmelluq.lava.discord.dispatch.SocketAddressInfo;
+import com.sedmelluq.lava.discord.dispatch.metrics.CompositeSendMetricsListener;
+import com.sedmelluq.lava.discord.dispatch.metrics.SendMetricsCollector;
+import com.sedmelluq.lava.discord.dispatch.metrics.SendMetricsListener;
+import com.sedmelluq.lava.discord.dispatch.metrics.StreamMetricsCollector;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketBuilder;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketBuilder.NonceStrategy;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketProvider;
+import com.sedmelluq.lava.discord.dispatch.queue.NativeAudioSendSystem;
+import com.sedmelluq.lava.discord.dispatch.queue.NativeAudioSendSystemFactory;
+import com.sedmelluq.lava.discord.dispatch.queue.PacketQueueSink;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Drives packets through the send path and fails if it allocates once warmed up. Allocated bytes are read from the
+ * thread MX bean before and after each run, and the cost of reading them is measured with an empty run and subtracted.
+ * The populate scenario fills a queue which only counts its packets in place of the native UDP queue library, so it
+ * runs everywhere. AES-GCM is only reported, as JCE allocates on every initialisation of the cipher.
+ *
+ * Run with the allocationCheck task, which the check task depends on.
+ */
+public class AllocationCheck {
+  private static final int WARMUP_ITERATIONS = 50000;
+  private static final int MEASURED_ITERATIONS = 20000;
+  private static final int BATCH_SIZE = 20;
+  private static final int PAYLOAD_SIZE = 160;
+  private static final long QUEUE_KEY = 1000000;
+
+  private final com.sun.management.ThreadMXBean threadBean =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  private final List<String> failures = new ArrayList<>();
+  private long measurementCost;
+
+  public static void main(String[] args) {
+    AllocationCheck check = new AllocationCheck();
+    check.run();
+
+    if (!check.failures.isEmpty()) {
+      System.err.println("Steady state allocation in: " + String.join(", ", check.failures));
+      System.exit(1);
+    }
+  }
+
+  private void run() {
+    measurementCost = measure(() -> {});
+
+    for (NonceStrategy strategy : NonceStrategy.values()) {
+      AudioPacketBuilder builder = createBuilder(strategy);
+      ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+      char[] sequence = new char[1];
+
+      boolean enforced = strategy != NonceStrategy.AES256_GCM_RTPSIZE;
+
+      check("writeEncrypted " + strategy, enforced, () -> {
+        buffer.clear();
+        ByteBuffer payload = builder.getPayloadBuffer(buffer, 0);
+        payload.position(payload.position() + PAYLOAD_SIZE);
+        builder.writeEncrypted(buffer, 0, sequence[0]++, sequence[0] * 960);
+      });
+
+      AudioPacketProvider provider = createProvider(strategy);
+      check("providePacket " + strategy, enforced, () -> {
+        buffer.clear();
+        provider.providePacket(buffer, true);
+      });
+
+      ByteBuffer[] buffers = createBuffers();
+      check("providePackets " + strategy, enforced, () -> provider.providePackets(buffers, BATCH_SIZE, true));
+
+      AudioPacketProvider measuredProvider = createProvider(strategy);
+      measuredProvider.setMetricsListener(new SendMetricsCollector(), 1);
+      check("providePackets with metrics " + strategy, enforced,
+          () -> measuredProvider.providePackets(buffers, BATCH_SIZE, true));
+
+      char[] batchSequence = new char[1];
+      check("precomputed writeEncrypted " + strategy, enforced, () -> {
+        builder.precomputeKeystreams(BATCH_SIZE, batchSequence[0], batchSequence[0] * 960, 960);
+
+        for (ByteBuffer batchBuffer : buffers) {
+          batchBuffer.clear();
+          ByteBuffer payload = builder.getPayloadBuffer(batchBuffer, 0);
+          payload.position(payload.position() + PAYLOAD_SIZE);
+        }
+
+        builder.writeEncrypted(buffers, BATCH_SIZE, batchSequence[0], batchSequence[0] * 960, 960);
+        batchSequence[0] += BATCH_SIZE;
+      });
+    }
+
+    checkStreamMetrics();
+    checkPopulate();
+  }
+
+  private void checkStreamMetrics() {
+    SendMetricsListener listener = new CompositeSendMetricsListener(new SendMetricsCollector(),
+        new StreamMetricsCollector());
+
+    AudioPacketProvider provider = createProvider(NonceStrategy.INCREMENTING_INT);
+    provider.setMetricsListener(listener, QUEUE_KEY);
+    provider.setStreamMetrics(listener.onStreamAdded(QUEUE_KEY));
+
+    ByteBuffer[] buffers = createBuffers();
+    check("providePackets with stream metrics", true, () -> provider.providePackets(buffers, BATCH_SIZE, true));
+  }
+
+  private void checkPopulate() {
+    NativeAudioSendSystemFactory factory = NativeAudioSendSystemFactory.builder()
+        .metricsListener(new SendMetricsCollector())
+        .latencySampleInterval(10)
+        .build();
+
+    AudioPacketProvider provider = createProvider(NonceStrategy.INCREMENTING_INT);
+    NativeAudioSendSystem system = new NativeAudioSendSystem(QUEUE_KEY, factory, provider);
+    CountingQueueSink queue = new CountingQueueSink(BATCH_SIZE * 4);
+    ByteBuffer[] buffers = createBuffers();
+
+    check("populateQueue", true, () -> {
+      system.populateQueue(queue, queue.getCapacity(), buffers);
+      queue.flushQueue(QUEUE_KEY);
+    });
+  }
+
+  private void check(String name, boolean enforced, Runnable operation) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      operation.run();
+    }
+
+    long allocated = Math.max(0, measure(operation) - measurementCost);
+    System.out.println(String.format("%-45s %10d bytes in %d iterations%s", name, allocated, MEASURED_ITERATIONS,
+        enforced ? "" : " (not enforced)"));
+
+    if (allocated > 0 && enforced) {
+      failures.add(name);
+    }
+  }
+
+  private long measure(Runnable operation) {
+    long threadId = Thread.currentThread().getId();
+    long start = threadBean.getThreadAllocatedBytes(threadId);
+
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      operation.run();
+    }
+
+    return threadBean.getThreadAllocatedBytes(threadId) - start;
+  }
+
+  private static AudioPacketBuilder createBuilder(NonceStrategy strategy) {
+    return new AudioPacketBuilder(createSecretKey(), 1, strategy);
+  }
+
+  private static AudioPacketProvider createProvider(NonceStrategy strategy) {
+    byte[] frame = new byte[PAYLOAD_SIZE];
+    new Random(PAYLOAD_SIZE).nextBytes(frame);
+
+    AudioPacketProvider provider = new AudioPacketProvider(packetProvider -> new IdleSendSystem(),
+        new InetSocketAddress("127.0.0.1", 50000), createSecretKey(), 1, strategy, speaking -> {}, -1);
+
+    provider.setFrameProvider(new FixedFrameProvider(frame));
+    provider.initialize();
+    return provider;
+  }
+
+  private static ByteBuffer[] createBuffers() {
+    ByteBuffer[] buffers = new ByteBuffer[BATCH_SIZE];
+
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      buffers[i] = ByteBuffer.allocateDirect(1024);
+    }
+
+    return buffers;
+  }
+
+  private static byte[] createSecretKey() {
+    byte[] secretKey = new byte[32];
+    new Random(1).nextBytes(secretKey);
+    return secretKey;
+  }
+
+  private static class FixedFrameProvider implements OpusFrameProvider {
+    private final byte[] frame;
+
+    private FixedFrameProvider(byte[] frame) {
+      this.frame = frame;
+    }
+
+    @Override
+    public boolean provideOpusFrame(ByteBuffer buffer) {
+      buffer.put(frame);
+      return true;
+    }
+  }
+
+  private static class CountingQueueSink implements PacketQueueSink {
+    private final int capacity;
+    private int queued;
+
+    private CountingQueueSink(int capacity) {
+      this.capacity = capacity;
+    }
+
+    @Override
+    public int getCapacity() {
+      return capacity;
+    }
+
+    @Override
+    public int getRemainingCapacity(long key) {
+      return capacity - queued;
+    }
+
+    @Override
+    public int queuePackets(long key, SocketAddressInfo destination, ByteBuffer[] buffers, int count) {
+      int added = Math.min(count, capacity - queued);
+      queued += added;
+      return added;
+    }
+
+    @Override
+    public boolean flushQueue(long key) {
+      queued = 0;
+      return true;
+    }
+  }
+
+  private static class IdleSendSystem implements AudioSendSystem {
+    @Override
+    public void start() {
+      // Packets are pulled by the check itself.
+    }
+
+    @Override
+    public void shutdown() {
+      // Nothing to do.
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.sedmelluq.lava.discord.dispatch.benchmark;
+
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketEncryption;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cipher and the MAC separately. Messages use the secretbox layout of AudioPacketBuilder, where the array
+ * variants expect the payload to be prefixed with 32 zero bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EncryptionBenchmark {
+  @Param({"3", "60", "160", "300"})
+  public int payloadSize;
+
+  private AudioPacketEncryption.Salsa20 salsa20;
+  private AudioPacketEncryption.Poly1305 poly1305;
+  private byte[] nonceBytes;
+  private byte[] messageBytes;
+  private byte[] cipherBytes;
+  private byte[] authenticationKey;
+  private byte[] tagBytes;
+  private ByteBuffer directBuffer;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(payloadSize);
+    byte[] secretKey = new byte[32];
+    random.nextBytes(secretKey);
+
+    salsa20 = new AudioPacketEncryption.Salsa20(secretKey);
+    poly1305 = new AudioPacketEncryption.Poly1305();
+    nonceBytes = new byte[24];
+    messageBytes = new byte[payloadSize + 64];
+    cipherBytes = new byte[payloadSize + 64];
+    authenticationKey = new byte[32];
+    tagBytes = new byte[16];
+    directBuffer = ByteBuffer.allocateDirect(payloadSize + 64);
+
+    random.nextBytes(nonceBytes);
+    random.nextBytes(authenticationKey);
+
+    for (int i = 32; i < payloadSize + 32; i++) {
+      messageBytes[i] = (byte) random.nextInt();
+      cipherBytes[i] = messageBytes[i];
+      directBuffer.put(i, messageBytes[i]);
+    }
+  }
+
+  @Benchmark
+  public byte[] salsa20Array() {
+    salsa20.process(nonceBytes, cipherBytes, messageBytes, payloadSize + 32);
+    return cipherBytes;
+  }
+
+  @Benchmark
+  public ByteBuffer salsa20Buffer() {
+    salsa20.process(nonceBytes, directBuffer, 32, payloadSize, authenticationKey);
+    return directBuffer;
+  }
+
+  @Benchmark
+  public byte[] poly1305Array() {
+    poly1305.process(authenticationKey, cipherBytes, 32, payloadSize, tagBytes, 0);
+    return tagBytes;
+  }
+
+  @Benchmark
+  public ByteBuffer poly1305Buffer() {
+    poly1305.process(authenticationKey, directBuffer, 32, payloadSize, directBuffer, 0);
+    return directBuffer;
+  }
+}
@@ -0,0 +1,277 @@
+package com.sedmelluq.lava.discord.dispatch.benchmark;
+
+import com.sedmelluq.lava.discord.dispatch.AudioSendSystemFactory;
+import com.sedmelluq.lava.discord.dispatch.OpusFrameProvider;
+import com.sedmelluq.lava.discord.dispatch.nio.NioAudioSendSystemFactory;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketBuilder.NonceStrategy;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketProviderHolder;
+import com.sedmelluq.lava.discord.dispatch.queue.NativeAudioSendSystemFactory;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends synthetic audio for many streams through a send system to sinks on loopback, and reports how well the packets
+ * were paced and whether any were lost or corrupted. Streams are set up the way a voice connection does it, through
+ * an audio packet provider holder, so the whole send stack is measured. Runs offline, nothing leaves the machine.
+ *
+ * Run with the loadTest task, options are passed as -PloadArgs="--streams 2000 --engine native":
+ * --engine nio|native, --streams, --duration and --warmup in seconds, --sinks, --nonce and --payload for the payload
+ * size in bytes. The nio engine takes --send-threads, the native engine --shards for the number of queue managers and
+ * --populator-threads, which defaults to the shard count. The effective configuration is printed with the results.
+ */
+public class LoadGenerator {
+  private static final long PACKET_INTERVAL = TimeUnit.MILLISECONDS.toNanos(20);
+
+  private final Map<String, String> options;
+  private final int streamCount;
+  private final int sinkCount;
+  private final int payloadSize;
+  private final NonceStrategy nonceStrategy;
+  private String configuration;
+
+  private LoadGenerator(Map<String, String> options) {
+    this.options = options;
+    this.streamCount = Integer.parseInt(options.getOrDefault("streams", "1000"));
+    this.sinkCount = Integer.parseInt(options.getOrDefault("sinks", "2"));
+    this.payloadSize = Integer.parseInt(options.getOrDefault("payload", "120"));
+    this.nonceStrategy = NonceStrategy.valueOf(options.getOrDefault("nonce", "INCREMENTING_INT"));
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (!args[i].startsWith("--")) {
+        throw new IllegalArgumentException("Expected an option instead of " + args[i]);
+      }
+
+      options.put(args[i].substring(2), args[i + 1]);
+    }
+
+    new LoadGenerator(options).run();
+  }
+
+  private void run() throws Exception {
+    String engine = options.getOrDefault("engine", "nio");
+    long warmup = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("warmup", "5")));
+    long duration = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("duration", "30")));
+
+    LoopbackSink.StreamState[][] streamsBySink = new LoopbackSink.StreamState[sinkCount][streamCount];
+    LoopbackSink[] sinks = new LoopbackSink[sinkCount];
+    Thread[] sinkThreads = new Thread[sinkCount];
+
+    for (int i = 0; i < sinkCount; i++) {
+      sinks[i] = new LoopbackSink(PACKET_INTERVAL, streamsBySink[i]);
+      sinkThreads[i] = new Thread(sinks[i], "loopback-sink-" + i);
+      sinkThreads[i].setDaemon(true);
+      sinkThreads[i].start();
+    }
+
+    AudioSendSystemFactory factory = createFactory(engine);
+    AudioPacketProviderHolder[] holders = new AudioPacketProviderHolder[streamCount];
+    Random random = new Random(streamCount);
+
+    for (int i = 0; i < streamCount; i++) {
+      byte[] secretKey = new byte[32];
+      random.nextBytes(secretKey);
+
+      streamsBySink[i % sinkCount][i] = new LoopbackSink.StreamState(i,
+          new PacketVerifier(secretKey, nonceStrategy));
+
+      SyntheticFrameProvider frameProvider = new SyntheticFrameProvider(i, payloadSize);
+      holders[i] = new AudioPacketProviderHolder(speaking -> {}, () -> frameProvider, factory, false);
+      holders[i].onKeyAndStrategyChanged(secretKey, nonceStrategy);
+      holders[i].onAddressAndSsrcChanged(sinks[i % sinkCount].getAddress(), i + 1);
+    }
+
+    Thread.sleep(warmup);
+
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    com.sun.management.OperatingSystemMXBean osBean =
+        (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+    long processCpuStart = osBean.getProcessCpuTime();
+    long sinkCpuStart = getCpuTime(threadBean, sinkThreads);
+    long start = System.nanoTime();
+
+    for (LoopbackSink sink : sinks) {
+      sink.setMeasuring(true);
+    }
+
+    Thread.sleep(duration);
+
+    for (LoopbackSink sink : sinks) {
+      sink.setMeasuring(false);
+    }
+
+    long elapsed = System.nanoTime() - start;
+    long sinkCpu = getCpuTime(threadBean, sinkThreads) - sinkCpuStart;
+    long sendCpu = osBean.getProcessCpuTime() - processCpuStart - sinkCpu;
+
+    for (AudioPacketProviderHolder holder : holders) {
+      holder.shutdown();
+    }
+
+    closeFactory(factory);
+
+    for (int i = 0; i < sinkCount; i++) {
+      sinks[i].close();
+      sinkThreads[i].join();
+    }
+
+    report(engine, sinks, elapsed, sendCpu);
+  }
+
+  private AudioSendSystemFactory createFactory(String engine) {
+    if ("native".equals(engine)) {
+      rejectOption("send-threads", engine);
+
+      int shards = Integer.parseInt(options.getOrDefault("shards", "1"));
+      int populatorThreads = Integer.parseInt(options.getOrDefault("populator-threads", String.valueOf(shards)));
+      configuration = String.format("%d shards, %d populator threads", shards, populatorThreads);
+
+      return NativeAudioSendSystemFactory.builder()
+          .shardCount(shards)
+          .populatorThreads(populatorThreads)
+          .build();
+    } else if ("nio".equals(engine)) {
+      rejectOption("shards", engine);
+      rejectOption("populator-threads", engine);
+
+      int sendThreads = Integer.parseInt(options.getOrDefault("send-threads", "1"));
+      configuration = String.format("%d send threads", sendThreads);
+
+      return NioAudioSendSystemFactory.builder()
+          .threadCount(sendThreads)
+          .build();
+    } else {
+      throw new IllegalArgumentException("Unknown engine " + engine);
+    }
+  }
+
+  private void rejectOption(String option, String engine) {
+    if (options.containsKey(option)) {
+      throw new IllegalArgumentException("Option --" + option + " does not apply to the " + engine + " engine");
+    }
+  }
+
+  private static void closeFactory(AudioSendSystemFactory factory) {
+    if (factory instanceof NativeAudioSendSystemFactory) {
+      ((NativeAudioSendSystemFactory) factory).close();
+    } else if (factory instanceof NioAudioSendSystemFactory) {
+      ((NioAudioSendSystemFactory) factory).close();
+    }
+  }
+
+  private static long getCpuTime(com.sun.management.ThreadMXBean threadBean, Thread[] threads) {
+    long total = 0;
+
+    for (Thread thread : threads) {
+      total += Math.max(0, threadBean.getThreadCpuTime(thread.getId()));
+    }
+
+    return total;
+  }
+
+  private void report(String engine, LoopbackSink[] sinks, long elapsed, long sendCpu) {
+    long received = 0;
+    long lost = 0;
+    long reordered = 0;
+    long timestampErrors = 0;
+    long authenticationFailures = 0;
+    long payloadErrors = 0;
+    long unknownStreams = 0;
+    long[] jitter = new long[sinks[0].getJitterMicros().length];
+
+    for (LoopbackSink sink : sinks) {
+      received += sink.received;
+      lost += sink.lost;
+      reordered += sink.reordered;
+      timestampErrors += sink.timestampErrors;
+      authenticationFailures += sink.authenticationFailures;
+      payloadErrors += sink.payloadErrors;
+      unknownStreams += sink.unknownStreams;
+
+      long[] sinkJitter = sink.getJitterMicros();
+
+      for (int i = 0; i < jitter.length; i++) {
+        jitter[i] += sinkJitter[i];
+      }
+    }
+
+    double seconds = elapsed / 1e9;
+    double expected = streamCount * seconds * TimeUnit.SECONDS.toNanos(1) / PACKET_INTERVAL;
+
+    System.out.println(String.format("engine %s (%s), %d streams, %d sinks, %d byte payloads, %s, %.1f s measured",
+        engine, configuration, streamCount, sinkCount, payloadSize, nonceStrategy, seconds));
+    System.out.println(String.format("throughput        %.0f packets/s (%.2f%% of expected)", received / seconds,
+        received * 100.0 / expected));
+    System.out.println(String.format("lost              %d (%.4f%%)", lost,
+        lost * 100.0 / Math.max(1, received + lost)));
+    System.out.println(String.format("reordered         %d", reordered));
+    System.out.println(String.format("timestamp errors  %d", timestampErrors));
+    System.out.println(String.format("auth failures     %d", authenticationFailures));
+    System.out.println(String.format("payload errors    %d", payloadErrors));
+    System.out.println(String.format("unknown streams   %d", unknownStreams));
+    System.out.println(String.format("jitter            p50 %s, p99 %s, p99.9 %s, max %s",
+        formatJitter(jitter, 50), formatJitter(jitter, 99), formatJitter(jitter, 99.9), formatJitter(jitter, 100)));
+    System.out.println(String.format("send cpu          %.1f us per stream per second (%.1f%% of a core in total)",
+        sendCpu / 1000.0 / streamCount / seconds, sendCpu * 100.0 / elapsed));
+  }
+
+  private static String formatJitter(long[] jitter, double percentile) {
+    long total = 0;
+
+    for (long count : jitter) {
+      total += count;
+    }
+
+    long threshold = (long) Math.ceil(total * percentile / 100.0);
+    long seen = 0;
+
+    for (int i = 0; i < jitter.length; i++) {
+      seen += jitter[i];
+
+      if (seen >= threshold && seen > 0) {
+        String value = String.format("%.3f ms", i / 1000.0);
+        return i == jitter.length - 1 ? ">" + value : value;
+      }
+    }
+
+    return "-";
+  }
+
+  /**
+   * Frames of the configured size which start with the index of the stream, so that the sink can tell whether it
+   * decrypted the payload of the right stream.
+   */
+  private static class SyntheticFrameProvider implements OpusFrameProvider {
+    private final int streamIndex;
+    private final int frameSize;
+    private int counter;
+
+    private SyntheticFrameProvider(int streamIndex, int frameSize) {
+      this.streamIndex = streamIndex;
+      this.frameSize = Math.max(frameSize, 8);
+    }
+
+    @Override
+    public boolean provideOpusFrame(ByteBuffer buffer) {
+      buffer.putInt(streamIndex);
+      buffer.putInt(counter++);
+
+      for (int i = 8; i < frameSize; i++) {
+        buffer.put((byte) i);
+      }
+
+      return true;
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package com.sedmelluq.lava.discord.dispatch.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Receives the packets of a set of streams on a loopback socket and checks them: authentication, payload, sequence
+ * and timestamp continuity, and how far the time between consecutive packets of a stream is off from the packet
+ * interval. Statistics are only collected while measuring is enabled, before that packets only update the state of
+ * their stream. Stream state is owned by the thread of the sink, the statistics are read after it has stopped.
+ */
+class LoopbackSink implements Runnable {
+  private static final int JITTER_BUCKETS = 100000;
+
+  private final DatagramChannel channel;
+  private final long packetInterval;
+  private final StreamState[] streams;
+  private final long[] jitterMicros = new long[JITTER_BUCKETS + 1];
+  private volatile boolean measuring;
+
+  long received;
+  long lost;
+  long reordered;
+  long timestampErrors;
+  long authenticationFailures;
+  long payloadErrors;
+  long unknownStreams;
+
+  /**
+   * @param packetInterval Expected time between the packets of one stream in nanoseconds
+   * @param streams State of each stream by its index, only the streams assigned to this sink are set
+   */
+  LoopbackSink(long packetInterval, StreamState[] streams) throws IOException {
+    this.packetInterval = packetInterval;
+    this.streams = streams;
+
+    channel = DatagramChannel.open();
+    channel.setOption(StandardSocketOptions.SO_RCVBUF, 8 * 1024 * 1024);
+    channel.bind(new InetSocketAddress("127.0.0.1", 0));
+  }
+
+  InetSocketAddress getAddress() throws IOException {
+    return (InetSocketAddress) channel.getLocalAddress();
+  }
+
+  void setMeasuring(boolean measuring) {
+    this.measuring = measuring;
+  }
+
+  void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * @return Histogram of how far the time between packets was off from the interval, one bucket per microsecond, the
+   *         last bucket holds everything above it
+   */
+  long[] getJitterMicros() {
+    return jitterMicros;
+  }
+
+  @Override
+  public void run() {
+    ByteBuffer buffer = ByteBuffer.allocate(2048);
+
+    try {
+      while (true) {
+        buffer.clear();
+        channel.receive(buffer);
+        onPacket(buffer.array(), buffer.position(), System.nanoTime());
+      }
+    } catch (ClosedChannelException e) {
+      // Stopped.
+    } catch (IOException e) {
+      throw new IllegalStateException("Receiving failed.", e);
+    }
+  }
+
+  private void onPacket(byte[] packet, int length, long now) {
+    boolean measure = measuring;
+    int streamIndex = readInt(packet, 8) - 1;
+    StreamState stream = streamIndex >= 0 && streamIndex < streams.length ? streams[streamIndex] : null;
+
+    if (stream == null) {
+      unknownStreams++;
+      return;
+    }
+
+    byte[] payload = stream.verifier.decrypt(packet, length);
+
+    if (measure) {
+      received++;
+
+      if (payload == null) {
+        authenticationFailures++;
+      } else if (!stream.isValidPayload(payload, stream.verifier.getPayloadLength(length))) {
+        payloadErrors++;
+      }
+    }
+
+    char sequence = (char) ((packet[2] & 0xff) << 8 | (packet[3] & 0xff));
+    int timestamp = readInt(packet, 4);
+
+    if (stream.lastArrival != 0) {
+      int sequenceDelta = (short) (sequence - stream.lastSequence);
+
+      if (sequenceDelta <= 0) {
+        if (measure) {
+          reordered++;
+        }
+
+        return;
+      }
+
+      if (measure) {
+        lost += sequenceDelta - 1;
+
+        if (timestamp - stream.lastTimestamp != sequenceDelta * StreamState.FRAME_SIZE) {
+          timestampErrors++;
+        }
+
+        if (sequenceDelta == 1) {
+          long offset = Math.abs(now - stream.lastArrival - packetInterval) / 1000;
+          jitterMicros[(int) Math.min(offset, JITTER_BUCKETS)]++;
+        }
+      }
+    }
+
+    stream.lastSequence = sequence;
+    stream.lastTimestamp = timestamp;
+    stream.lastArrival = now;
+  }
+
+  private static int readInt(byte[] array, int index) {
+    return (array[index] & 0xff) << 24 | (array[index + 1] & 0xff) << 16 | (array[index + 2] & 0xff) << 8 |
+        (array[index + 3] & 0xff);
+  }
+
+  static class StreamState {
+    static final int FRAME_SIZE = 960;
+    private static final byte[] SILENCE = new byte[] { (byte) 0xF8, (byte) 0xFF, (byte) 0xFE };
+
+    private final int index;
+    private final PacketVerifier verifier;
+    private char lastSequence;
+    private int lastTimestamp;
+    private long lastArrival;
+
+    StreamState(int index, PacketVerifier verifier) {
+      this.index = index;
+      this.verifier = verifier;
+    }
+
+    private boolean isValidPayload(byte[] payload, int length) {
+      if (length == SILENCE.length) {
+        return payload[0] == SILENCE[0] && payload[1] == SILENCE[1] && payload[2] == SILENCE[2];
+      }
+
+      return length >= 4 && readInt(payload, 0) == index;
+    }
+  }
+}
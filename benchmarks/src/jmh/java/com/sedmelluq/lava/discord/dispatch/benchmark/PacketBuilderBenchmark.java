@@ -0,0 +1,72 @@
+package com.sedmelluq.lava.discord.dispatch.benchmark;
+
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building one complete packet, including the header, encryption and the nonce suffix.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketBuilderBenchmark {
+  @Param({"INCREMENTING_INT", "RANDOM_SEQUENCE", "PACKET_HEADER", "AES256_GCM_RTPSIZE"})
+  public AudioPacketBuilder.NonceStrategy nonceStrategy;
+
+  @Param({"3", "60", "160", "300"})
+  public int payloadSize;
+
+  private AudioPacketBuilder builder;
+  private byte[] payload;
+  private ByteBuffer directBuffer;
+  private char sequenceNumber;
+  private int timestamp;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(payloadSize);
+    byte[] secretKey = new byte[32];
+    random.nextBytes(secretKey);
+
+    builder = new AudioPacketBuilder(secretKey, random.nextInt(), nonceStrategy);
+    payload = new byte[payloadSize];
+    directBuffer = ByteBuffer.allocateDirect(1024);
+
+    random.nextBytes(payload);
+  }
+
+  @Benchmark
+  public ByteBuffer writeEncrypted() {
+    directBuffer.clear();
+    builder.getPayloadBuffer().put(payload);
+    builder.writeEncrypted(directBuffer, nextSequence(), nextTimestamp());
+    return directBuffer;
+  }
+
+  @Benchmark
+  public ByteBuffer writeEncryptedInPlace() {
+    directBuffer.clear();
+    builder.getPayloadBuffer(directBuffer, 0).put(payload);
+    builder.writeEncrypted(directBuffer, 0, nextSequence(), nextTimestamp());
+    return directBuffer;
+  }
+
+  private char nextSequence() {
+    return ++sequenceNumber;
+  }
+
+  private int nextTimestamp() {
+    return timestamp += 960;
+  }
+}
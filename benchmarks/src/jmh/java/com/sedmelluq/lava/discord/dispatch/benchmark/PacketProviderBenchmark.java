@@ -0,0 +1,115 @@
+package com.sedmelluq.lava.discord.dispatch.benchmark;
+
+import com.sedmelluq.lava.discord.dispatch.AudioSendSystem;
+import com.sedmelluq.lava.discord.dispatch.OpusFrameProvider;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketBuilder;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the whole per-packet path the send system drives: fetching a frame from the frame provider, sequencing and
+ * building the encrypted packet into a direct buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketProviderBenchmark {
+  private static final int BATCH_SIZE = 20;
+
+  @Param({"INCREMENTING_INT", "RANDOM_SEQUENCE", "PACKET_HEADER", "AES256_GCM_RTPSIZE"})
+  public AudioPacketBuilder.NonceStrategy nonceStrategy;
+
+  @Param({"3", "60", "160", "300"})
+  public int payloadSize;
+
+  private AudioPacketProvider packetProvider;
+  private ByteBuffer directBuffer;
+  private ByteBuffer[] batchBuffers;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Random random = new Random(payloadSize);
+    byte[] secretKey = new byte[32];
+    byte[] frame = new byte[payloadSize];
+
+    random.nextBytes(secretKey);
+    random.nextBytes(frame);
+
+    InetSocketAddress address = new InetSocketAddress("127.0.0.1", 50000);
+    packetProvider = new AudioPacketProvider(provider -> new IdleSendSystem(), address, secretKey, random.nextInt(),
+        nonceStrategy, speaking -> {}, -1);
+
+    packetProvider.setFrameProvider(new FixedFrameProvider(frame));
+    packetProvider.initialize();
+
+    directBuffer = ByteBuffer.allocateDirect(1024);
+    batchBuffers = new ByteBuffer[BATCH_SIZE];
+
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      batchBuffers[i] = ByteBuffer.allocateDirect(1024);
+    }
+
+    // Get past the silence frames sent on connect.
+    for (int i = 0; i < 20; i++) {
+      providePacket();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    packetProvider.shutdown();
+  }
+
+  @Benchmark
+  public boolean providePacket() {
+    directBuffer.clear();
+    return packetProvider.providePacket(directBuffer, true);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public int providePackets() {
+    return packetProvider.providePackets(batchBuffers, BATCH_SIZE, true);
+  }
+
+  private static class FixedFrameProvider implements OpusFrameProvider {
+    private final byte[] frame;
+
+    private FixedFrameProvider(byte[] frame) {
+      this.frame = frame;
+    }
+
+    @Override
+    public boolean provideOpusFrame(ByteBuffer buffer) {
+      buffer.put(frame);
+      return true;
+    }
+  }
+
+  private static class IdleSendSystem implements AudioSendSystem {
+    @Override
+    public void start() {
+      // Packets are pulled by the benchmark itself.
+    }
+
+    @Override
+    public void shutdown() {
+      // Nothing to do.
+    }
+  }
+}
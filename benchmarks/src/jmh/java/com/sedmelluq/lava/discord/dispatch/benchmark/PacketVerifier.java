@@ -0,0 +1,143 @@
+package com.sedmelluq.lava.discord.dispatch.benchmark;
+
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketBuilder.NonceStrategy;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketEncryption;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Authenticates and decrypts the packets of one stream, the receiving side of what the packet builder does.
+ */
+class PacketVerifier {
+  static final int HEADER_LENGTH = 12;
+
+  private static final int TAG_LENGTH = 16;
+  private static final int NONCE_LENGTH = 24;
+
+  private final NonceStrategy nonceStrategy;
+  private final AudioPacketEncryption.Salsa20 salsa20;
+  private final AudioPacketEncryption.Poly1305 poly1305;
+  private final SecretKeySpec keySpec;
+  private final Cipher cipher;
+  private final byte[] nonce = new byte[NONCE_LENGTH];
+  private final byte[] message = new byte[2048];
+  private final byte[] plain = new byte[2048];
+  private final byte[] tag = new byte[TAG_LENGTH];
+
+  PacketVerifier(byte[] secretKey, NonceStrategy nonceStrategy) {
+    this.nonceStrategy = nonceStrategy;
+
+    if (nonceStrategy == NonceStrategy.AES256_GCM_RTPSIZE) {
+      salsa20 = null;
+      poly1305 = null;
+      keySpec = new SecretKeySpec(secretKey, "AES");
+
+      try {
+        cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("AES-GCM is not supported by this JVM.", e);
+      }
+    } else {
+      salsa20 = new AudioPacketEncryption.Salsa20(secretKey);
+      poly1305 = new AudioPacketEncryption.Poly1305();
+      keySpec = null;
+      cipher = null;
+    }
+  }
+
+  /**
+   * @param packet Array containing the packet from index zero
+   * @param length Length of the packet
+   * @return Array holding the decrypted payload from index zero, null if the packet did not authenticate
+   */
+  byte[] decrypt(byte[] packet, int length) {
+    if (cipher != null) {
+      return decryptGcm(packet, length);
+    } else {
+      return decryptSalsa(packet, length);
+    }
+  }
+
+  /**
+   * @param packetLength Length of a packet
+   * @return Length of the payload in it
+   */
+  int getPayloadLength(int packetLength) {
+    if (cipher != null) {
+      return packetLength - HEADER_LENGTH - TAG_LENGTH - 4;
+    } else {
+      return packetLength - HEADER_LENGTH - TAG_LENGTH - getNonceSuffixLength();
+    }
+  }
+
+  private byte[] decryptSalsa(byte[] packet, int length) {
+    int cipherLength = getPayloadLength(length);
+
+    if (cipherLength < 0) {
+      return null;
+    }
+
+    readNonce(packet, length);
+
+    // Same layout as the array variant of the builder: 32 zero bytes in front of the message yield the Poly1305 key.
+    Arrays.fill(message, 0, 32, (byte) 0);
+    System.arraycopy(packet, HEADER_LENGTH + TAG_LENGTH, message, 32, cipherLength);
+    salsa20.process(nonce, plain, message, cipherLength + 32);
+
+    poly1305.process(plain, message, 32, cipherLength, tag, 0);
+
+    for (int i = 0; i < TAG_LENGTH; i++) {
+      if (tag[i] != packet[HEADER_LENGTH + i]) {
+        return null;
+      }
+    }
+
+    System.arraycopy(plain, 32, plain, 0, cipherLength);
+    return plain;
+  }
+
+  private byte[] decryptGcm(byte[] packet, int length) {
+    int cipherLength = getPayloadLength(length);
+
+    if (cipherLength < 0) {
+      return null;
+    }
+
+    byte[] iv = new byte[12];
+    System.arraycopy(packet, length - 4, iv, 0, 4);
+
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, keySpec, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+      cipher.updateAAD(packet, 0, HEADER_LENGTH);
+      cipher.doFinal(packet, HEADER_LENGTH, cipherLength + TAG_LENGTH, plain, 0);
+      return plain;
+    } catch (GeneralSecurityException e) {
+      return null;
+    }
+  }
+
+  private void readNonce(byte[] packet, int length) {
+    Arrays.fill(nonce, (byte) 0);
+
+    if (nonceStrategy == NonceStrategy.PACKET_HEADER) {
+      System.arraycopy(packet, 0, nonce, 0, HEADER_LENGTH);
+    } else {
+      int suffixLength = getNonceSuffixLength();
+      System.arraycopy(packet, length - suffixLength, nonce, 0, suffixLength);
+    }
+  }
+
+  private int getNonceSuffixLength() {
+    if (nonceStrategy == NonceStrategy.INCREMENTING_INT) {
+      return 4;
+    } else if (nonceStrategy == NonceStrategy.RANDOM_SEQUENCE) {
+      return NONCE_LENGTH;
+    } else {
+      return 0;
+    }
+  }
+}
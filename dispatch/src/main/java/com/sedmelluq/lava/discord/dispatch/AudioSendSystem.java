@@ -1,7 +1,26 @@
 package com.sedmelluq.lava.discord.dispatch;
 
+import com.sedmelluq.lava.discord.dispatch.metrics.LongHistogram;
+
 public interface AudioSendSystem {
   void start();
 
   void shutdown();
+
+  /**
+   * Drops the packets which are already queued for sending and refills the queue right away, so that a change of the
+   * frame provider is heard without waiting for the old audio to play out. Does nothing if the send system does not
+   * queue packets ahead.
+   */
+  default void flush() {
+    // Nothing to do.
+  }
+
+  /**
+   * @return Histogram of sampled latencies from frame provider to socket in nanoseconds, null if latency tracing is
+   *         not enabled or not supported by the send system
+   */
+  default LongHistogram getFrameLatency() {
+    return null;
+  }
 }
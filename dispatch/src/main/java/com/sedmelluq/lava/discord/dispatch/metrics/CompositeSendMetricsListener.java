@@ -0,0 +1,205 @@
+package com.sedmelluq.lava.discord.dispatch.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Passes the events on to several listeners, for example to keep counters and record events at the same time.
+ */
+public class CompositeSendMetricsListener implements SendMetricsListener {
+  private final SendMetricsListener[] listeners;
+
+  public CompositeSendMetricsListener(SendMetricsListener... listeners) {
+    this.listeners = listeners.clone();
+  }
+
+  @Override
+  public StreamMetricsListener onStreamAdded(long streamId) {
+    StreamMetricsListener[] streamListeners = new StreamMetricsListener[listeners.length];
+    int count = 0;
+
+    for (SendMetricsListener listener : listeners) {
+      StreamMetricsListener streamListener = listener.onStreamAdded(streamId);
+
+      if (streamListener != StreamMetricsListener.NONE) {
+        streamListeners[count++] = streamListener;
+      }
+    }
+
+    if (count == 0) {
+      return StreamMetricsListener.NONE;
+    } else if (count == 1) {
+      return streamListeners[0];
+    } else {
+      return new CompositeStreamMetricsListener(Arrays.copyOf(streamListeners, count));
+    }
+  }
+
+  @Override
+  public void onStreamRemoved(long streamId) {
+    for (SendMetricsListener listener : listeners) {
+      listener.onStreamRemoved(streamId);
+    }
+  }
+
+  @Override
+  public void onPacketsQueued(long streamId, int count) {
+    for (SendMetricsListener listener : listeners) {
+      listener.onPacketsQueued(streamId, count);
+    }
+  }
+
+  @Override
+  public void onProviderMiss(long streamId) {
+    for (SendMetricsListener listener : listeners) {
+      listener.onProviderMiss(streamId);
+    }
+  }
+
+  @Override
+  public void onSilenceFrame(long streamId) {
+    for (SendMetricsListener listener : listeners) {
+      listener.onSilenceFrame(streamId);
+    }
+  }
+
+  @Override
+  public void onQueueFull(long streamId) {
+    for (SendMetricsListener listener : listeners) {
+      listener.onQueueFull(streamId);
+    }
+  }
+
+  @Override
+  public void onSendFailed(long streamId) {
+    for (SendMetricsListener listener : listeners) {
+      listener.onSendFailed(streamId);
+    }
+  }
+
+  @Override
+  public void onEncryption(long streamId, int packetCount, long duration) {
+    for (SendMetricsListener listener : listeners) {
+      listener.onEncryption(streamId, packetCount, duration);
+    }
+  }
+
+  @Override
+  public void onRefill(long streamId, int queueDepth) {
+    for (SendMetricsListener listener : listeners) {
+      listener.onRefill(streamId, queueDepth);
+    }
+  }
+
+  @Override
+  public void onPacketsProvided(long streamId, long duration, int packets, StopReason reason) {
+    for (SendMetricsListener listener : listeners) {
+      listener.onPacketsProvided(streamId, duration, packets, reason);
+    }
+  }
+
+  @Override
+  public void onStreamPopulated(long streamId, long duration, int queueDepth, int packets, StopReason reason) {
+    for (SendMetricsListener listener : listeners) {
+      listener.onStreamPopulated(streamId, duration, queueDepth, packets, reason);
+    }
+  }
+
+  @Override
+  public void onFrameLatency(long streamId, long latency) {
+    for (SendMetricsListener listener : listeners) {
+      listener.onFrameLatency(streamId, latency);
+    }
+  }
+
+  @Override
+  public void onPopulateCycleStarted() {
+    for (SendMetricsListener listener : listeners) {
+      listener.onPopulateCycleStarted();
+    }
+  }
+
+  @Override
+  public void onPopulateCycle(long duration, boolean overrun) {
+    for (SendMetricsListener listener : listeners) {
+      listener.onPopulateCycle(duration, overrun);
+    }
+  }
+
+  private static class CompositeStreamMetricsListener implements StreamMetricsListener {
+    private final StreamMetricsListener[] listeners;
+
+    private CompositeStreamMetricsListener(StreamMetricsListener[] listeners) {
+      this.listeners = listeners;
+    }
+
+    @Override
+    public void onPacketsQueued(int count) {
+      for (StreamMetricsListener listener : listeners) {
+        listener.onPacketsQueued(count);
+      }
+    }
+
+    @Override
+    public void onProviderMiss() {
+      for (StreamMetricsListener listener : listeners) {
+        listener.onProviderMiss();
+      }
+    }
+
+    @Override
+    public void onSilenceFrame() {
+      for (StreamMetricsListener listener : listeners) {
+        listener.onSilenceFrame();
+      }
+    }
+
+    @Override
+    public void onQueueFull() {
+      for (StreamMetricsListener listener : listeners) {
+        listener.onQueueFull();
+      }
+    }
+
+    @Override
+    public void onSendFailed() {
+      for (StreamMetricsListener listener : listeners) {
+        listener.onSendFailed();
+      }
+    }
+
+    @Override
+    public void onRefill(int queueDepth) {
+      for (StreamMetricsListener listener : listeners) {
+        listener.onRefill(queueDepth);
+      }
+    }
+
+    @Override
+    public void onProvideStarted() {
+      for (StreamMetricsListener listener : listeners) {
+        listener.onProvideStarted();
+      }
+    }
+
+    @Override
+    public void onPacketsProvided(long duration, int packets, StopReason reason) {
+      for (StreamMetricsListener listener : listeners) {
+        listener.onPacketsProvided(duration, packets, reason);
+      }
+    }
+
+    @Override
+    public void onPopulateStarted() {
+      for (StreamMetricsListener listener : listeners) {
+        listener.onPopulateStarted();
+      }
+    }
+
+    @Override
+    public void onStreamPopulated(long duration, int queueDepth, int packets, StopReason reason) {
+      for (StreamMetricsListener listener : listeners) {
+        listener.onStreamPopulated(duration, queueDepth, packets, reason);
+      }
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package com.sedmelluq.lava.discord.dispatch.metrics;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Samples the latency of one stream from the moment a frame is taken from its frame provider until its packet leaves
+ * the socket. Every n-th packet is stamped with the time it was built. For send systems which send a packet right
+ * after building it, the send time is reported directly. For send systems which queue packets ahead, the send time is
+ * derived from how far the queue has drained since: once the queue depth shows that a sampled packet has left, its
+ * send time is estimated from the packet interval, bounded by the previous time the depth was read.
+ *
+ * Results go into a histogram of this stream and are also reported to the metrics listener. Recording is guarded by
+ * the caller, the histogram can be read from any thread.
+ */
+@NotThreadSafe
+public class FrameLatencyTracer {
+  private static final int MAXIMUM_PENDING = 64;
+
+  private final long streamId;
+  private final int sampleInterval;
+  private final long packetInterval;
+  private final SendMetricsListener metricsListener;
+  private final LongHistogram latency = new LongHistogram();
+  private final long[] pendingIndices = new long[MAXIMUM_PENDING];
+  private final long[] pendingTimes = new long[MAXIMUM_PENDING];
+  private int pendingStart;
+  private int pendingCount;
+  private long queuedTotal;
+  private long nextSample;
+  private long lastDepthTime;
+
+  /**
+   * @param streamId Stream identifier for the metrics listener
+   * @param sampleInterval Every how many packets one is sampled
+   * @param packetInterval Interval at which the packets of the stream are sent in nanoseconds
+   * @param metricsListener Listener to report the samples to
+   */
+  public FrameLatencyTracer(long streamId, int sampleInterval, long packetInterval,
+                            SendMetricsListener metricsListener) {
+
+    if (sampleInterval < 1) {
+      throw new IllegalArgumentException("Sample interval must be at least 1.");
+    }
+
+    this.streamId = streamId;
+    this.sampleInterval = sampleInterval;
+    this.packetInterval = packetInterval;
+    this.metricsListener = metricsListener;
+  }
+
+  /**
+   * @return Histogram of sampled latencies of this stream in nanoseconds
+   */
+  public LongHistogram getLatency() {
+    return latency;
+  }
+
+  /**
+   * For send systems which send right away, decides whether to stamp the next packet.
+   *
+   * @return True if the next packet is sampled
+   */
+  public boolean isNextSampled() {
+    return queuedTotal == nextSample;
+  }
+
+  /**
+   * Reports a packet which was sent right after it was built.
+   *
+   * @param buildTime System nano time at which the frame was taken from the frame provider, only used when the packet
+   *                  was sampled
+   * @param sendTime System nano time after the packet was sent, only used when the packet was sampled
+   */
+  public void onSent(long buildTime, long sendTime) {
+    if (isNextSampled()) {
+      nextSample += sampleInterval;
+      record(sendTime - buildTime);
+    }
+
+    queuedTotal++;
+  }
+
+  /**
+   * For send systems which queue packets ahead, decides whether one of the packets in the next batch is sampled.
+   *
+   * @param count Number of packets in the batch
+   * @return True if the batch contains a sampled packet
+   */
+  public boolean isSampled(int count) {
+    return nextSample < queuedTotal + count;
+  }
+
+  /**
+   * Reports a batch of packets added to the queue. The packets of a batch are built back to back, so they share the
+   * time stamp.
+   *
+   * @param buildTime System nano time at which the batch was started, only used when it contains a sampled packet
+   * @param count Number of packets which were added to the queue
+   */
+  public void onQueued(long buildTime, int count) {
+    long end = queuedTotal + count;
+
+    while (nextSample < end) {
+      if (pendingCount < MAXIMUM_PENDING) {
+        int slot = (pendingStart + pendingCount) % MAXIMUM_PENDING;
+        pendingIndices[slot] = nextSample;
+        pendingTimes[slot] = buildTime;
+        pendingCount++;
+      }
+
+      nextSample += sampleInterval;
+    }
+
+    queuedTotal = end;
+  }
+
+  /**
+   * @return True if there are sampled packets in the queue which have not been resolved yet
+   */
+  public boolean hasPending() {
+    return pendingCount > 0;
+  }
+
+  /**
+   * Resolves the sampled packets which have left the queue according to its current depth.
+   *
+   * @param now System nano time at which the depth was read
+   * @param depth Number of packets currently in the queue
+   */
+  public void onQueueDepth(long now, int depth) {
+    long sent = queuedTotal - depth;
+
+    while (pendingCount > 0 && pendingIndices[pendingStart] < sent) {
+      long sendTime = Math.max(lastDepthTime, now - (sent - 1 - pendingIndices[pendingStart]) * packetInterval);
+      record(Math.max(0, sendTime - pendingTimes[pendingStart]));
+
+      pendingStart = (pendingStart + 1) % MAXIMUM_PENDING;
+      pendingCount--;
+    }
+
+    lastDepthTime = now;
+  }
+
+  /**
+   * Forgets the sampled packets in the queue, for when the queue was emptied without sending them.
+   */
+  public void onQueueDropped() {
+    pendingStart = 0;
+    pendingCount = 0;
+  }
+
+  private void record(long value) {
+    latency.record(value);
+    metricsListener.onFrameLatency(streamId, value);
+  }
+}
@@ -0,0 +1,93 @@
+package com.sedmelluq.lava.discord.dispatch.metrics;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram with one bucket per power of two, for values which are only interesting by their order of magnitude, such
+ * as durations. Recording only increments a striped counter, so it does not contend or allocate once warmed up.
+ */
+@ThreadSafe
+public class LongHistogram {
+  private static final int BUCKET_COUNT = 64;
+
+  private final LongAdder[] buckets;
+
+  public LongHistogram() {
+    buckets = new LongAdder[BUCKET_COUNT];
+
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * @param value Value to record, negative values are recorded as zero
+   */
+  public void record(long value) {
+    buckets[getBucket(value)].increment();
+  }
+
+  public long getCount() {
+    long count = 0;
+
+    for (LongAdder bucket : buckets) {
+      count += bucket.sum();
+    }
+
+    return count;
+  }
+
+  /**
+   * @param percentile Percentile between 0 and 100
+   * @return Upper bound of the bucket the value at this percentile falls into, 0 if nothing has been recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    long[] counts = getBucketCounts();
+    long total = 0;
+
+    for (long count : counts) {
+      total += count;
+    }
+
+    long threshold = (long) Math.ceil(total * percentile / 100.0);
+    long seen = 0;
+
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+
+      if (seen >= threshold && seen > 0) {
+        return getBucketUpperBound(i);
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * @return Counts of the buckets, bucket 0 holds zero and bucket i holds values from 2^(i-1) to 2^i - 1
+   */
+  public long[] getBucketCounts() {
+    long[] counts = new long[buckets.length];
+
+    for (int i = 0; i < buckets.length; i++) {
+      counts[i] = buckets[i].sum();
+    }
+
+    return counts;
+  }
+
+  public void reset() {
+    for (LongAdder bucket : buckets) {
+      bucket.reset();
+    }
+  }
+
+  private static int getBucket(long value) {
+    return value <= 0 ? 0 : Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+  }
+
+  private static long getBucketUpperBound(int bucket) {
+    return bucket == 0 ? 0 : bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+  }
+}
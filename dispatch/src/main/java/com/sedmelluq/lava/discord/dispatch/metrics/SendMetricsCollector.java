@@ -0,0 +1,147 @@
+package com.sedmelluq.lava.discord.dispatch.metrics;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the events of all streams of one or more send systems into striped counters and histograms. Cheap enough to
+ * stay enabled in production. Per-stream counters are kept by {@link StreamMetricsCollector}.
+ */
+@ThreadSafe
+public class SendMetricsCollector implements SendMetricsListener {
+  private final LongAdder packetsQueued = new LongAdder();
+  private final LongAdder providerMisses = new LongAdder();
+  private final LongAdder silenceFrames = new LongAdder();
+  private final LongAdder queueFullRejections = new LongAdder();
+  private final LongAdder sendFailures = new LongAdder();
+  private final LongAdder providerExceptions = new LongAdder();
+  private final LongAdder populateCycles = new LongAdder();
+  private final LongAdder populateOverruns = new LongAdder();
+  private final LongHistogram encryptionTime = new LongHistogram();
+  private final LongHistogram queueDepth = new LongHistogram();
+  private final LongHistogram populateCycleTime = new LongHistogram();
+  private final LongHistogram frameLatency = new LongHistogram();
+
+  @Override
+  public void onPacketsQueued(long streamId, int count) {
+    packetsQueued.add(count);
+  }
+
+  @Override
+  public void onProviderMiss(long streamId) {
+    providerMisses.increment();
+  }
+
+  @Override
+  public void onSilenceFrame(long streamId) {
+    silenceFrames.increment();
+  }
+
+  @Override
+  public void onQueueFull(long streamId) {
+    queueFullRejections.increment();
+  }
+
+  @Override
+  public void onSendFailed(long streamId) {
+    sendFailures.increment();
+  }
+
+  @Override
+  public void onEncryption(long streamId, int packetCount, long duration) {
+    encryptionTime.record(duration / packetCount);
+  }
+
+  @Override
+  public void onRefill(long streamId, int queueDepth) {
+    this.queueDepth.record(queueDepth);
+  }
+
+  @Override
+  public void onPacketsProvided(long streamId, long duration, int packets, StopReason reason) {
+    if (reason == StopReason.EXCEPTION) {
+      providerExceptions.increment();
+    }
+  }
+
+  @Override
+  public void onFrameLatency(long streamId, long latency) {
+    frameLatency.record(latency);
+  }
+
+  @Override
+  public void onPopulateCycle(long duration, boolean overrun) {
+    populateCycles.increment();
+    populateCycleTime.record(duration);
+
+    if (overrun) {
+      populateOverruns.increment();
+    }
+  }
+
+  public long getPacketsQueued() {
+    return packetsQueued.sum();
+  }
+
+  public long getProviderMisses() {
+    return providerMisses.sum();
+  }
+
+  public long getSilenceFrames() {
+    return silenceFrames.sum();
+  }
+
+  public long getQueueFullRejections() {
+    return queueFullRejections.sum();
+  }
+
+  /**
+   * @return Number of packets dropped because sending them failed with an exception
+   */
+  public long getSendFailures() {
+    return sendFailures.sum();
+  }
+
+  /**
+   * @return Number of times building packets failed with an exception
+   */
+  public long getProviderExceptions() {
+    return providerExceptions.sum();
+  }
+
+  public long getPopulateCycles() {
+    return populateCycles.sum();
+  }
+
+  public long getPopulateOverruns() {
+    return populateOverruns.sum();
+  }
+
+  /**
+   * @return Histogram of encryption time per packet in nanoseconds
+   */
+  public LongHistogram getEncryptionTime() {
+    return encryptionTime;
+  }
+
+  /**
+   * @return Histogram of the number of packets left in a queue when it was refilled
+   */
+  public LongHistogram getQueueDepth() {
+    return queueDepth;
+  }
+
+  /**
+   * @return Histogram of populate cycle durations in nanoseconds
+   */
+  public LongHistogram getPopulateCycleTime() {
+    return populateCycleTime;
+  }
+
+  /**
+   * @return Histogram of sampled latencies from frame provider to socket of all streams in nanoseconds
+   */
+  public LongHistogram getFrameLatency() {
+    return frameLatency;
+  }
+}
@@ -0,0 +1,144 @@
+package com.sedmelluq.lava.discord.dispatch.metrics;
+
+/**
+ * Receives events from the send path. Called from the threads which build and send packets, so implementations must be
+ * thread safe and cheap, and should not allocate. Streams are identified by the identifier their send system assigned
+ * to them.
+ */
+public interface SendMetricsListener {
+  SendMetricsListener NONE = new SendMetricsListener() {};
+
+  /**
+   * A stream was added to a send system. Events for the stream are only reported after this.
+   *
+   * @param streamId Stream identifier
+   * @return Listener which the stream reports its events to in addition to this one, until it is removed
+   */
+  default StreamMetricsListener onStreamAdded(long streamId) {
+    return StreamMetricsListener.NONE;
+  }
+
+  /**
+   * A stream was removed from its send system. Events for it which were already in flight may still follow.
+   *
+   * @param streamId Stream identifier
+   */
+  default void onStreamRemoved(long streamId) {
+    // Nothing to do.
+  }
+
+  /**
+   * @param streamId Stream identifier
+   * @param count Number of packets added to the queue of the stream, or sent for send systems which do not queue
+   */
+  default void onPacketsQueued(long streamId, int count) {
+    // Nothing to do.
+  }
+
+  /**
+   * The frame provider of the stream was asked for a frame and did not have one.
+   *
+   * @param streamId Stream identifier
+   */
+  default void onProviderMiss(long streamId) {
+    // Nothing to do.
+  }
+
+  /**
+   * A silence frame was sent in place of audio, when starting or after the audio stopped.
+   *
+   * @param streamId Stream identifier
+   */
+  default void onSilenceFrame(long streamId) {
+    // Nothing to do.
+  }
+
+  /**
+   * A packet was rejected because the queue of the stream, or the socket buffer, was full.
+   *
+   * @param streamId Stream identifier
+   */
+  default void onQueueFull(long streamId) {
+    // Nothing to do.
+  }
+
+  /**
+   * Sending a packet failed with an exception, the packet was dropped.
+   *
+   * @param streamId Stream identifier
+   */
+  default void onSendFailed(long streamId) {
+    // Nothing to do.
+  }
+
+  /**
+   * @param streamId Stream identifier
+   * @param packetCount Number of packets encrypted together
+   * @param duration Time it took to encrypt them in nanoseconds
+   */
+  default void onEncryption(long streamId, int packetCount, long duration) {
+    // Nothing to do.
+  }
+
+  /**
+   * @param streamId Stream identifier
+   * @param queueDepth Number of packets which were still in the queue of the stream when it was refilled
+   */
+  default void onRefill(long streamId, int queueDepth) {
+    // Nothing to do.
+  }
+
+  /**
+   * Called for each call to the packet provider of a stream.
+   *
+   * @param streamId Stream identifier
+   * @param duration Time it took to build the packets in nanoseconds
+   * @param packets Number of packets built
+   * @param reason Why it stopped building packets
+   */
+  default void onPacketsProvided(long streamId, long duration, int packets, StopReason reason) {
+    // Nothing to do.
+  }
+
+  /**
+   * Called each time the queue of a stream has been refilled.
+   *
+   * @param streamId Stream identifier
+   * @param duration Time it took to build and queue the packets in nanoseconds
+   * @param queueDepth Number of packets which were still in the queue before the refill
+   * @param packets Number of packets added to the queue
+   * @param reason Why it stopped adding packets
+   */
+  default void onStreamPopulated(long streamId, long duration, int queueDepth, int packets, StopReason reason) {
+    // Nothing to do.
+  }
+
+  /**
+   * A sampled packet has left the socket. Only reported when latency tracing is enabled on the send system.
+   *
+   * @param streamId Stream identifier
+   * @param latency Time from taking the frame from the frame provider until the packet was sent in nanoseconds
+   */
+  default void onFrameLatency(long streamId, long latency) {
+    // Nothing to do.
+  }
+
+  /**
+   * A populate cycle or send tick is starting on the current thread. Followed by
+   * {@link #onPopulateCycle(long, boolean)} on the same thread once it has ended.
+   */
+  default void onPopulateCycleStarted() {
+    // Nothing to do.
+  }
+
+  /**
+   * One populate cycle of a partition of a send system which queues packets ahead, or one tick of a send thread of a
+   * paced send system.
+   *
+   * @param duration Time the cycle took in nanoseconds
+   * @param overrun True if it took longer than the interval it is run at
+   */
+  default void onPopulateCycle(long duration, boolean overrun) {
+    // Nothing to do.
+  }
+}
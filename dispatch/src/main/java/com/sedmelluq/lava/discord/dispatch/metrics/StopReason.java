@@ -0,0 +1,23 @@
+package com.sedmelluq.lava.discord.dispatch.metrics;
+
+/**
+ * Why building or queueing packets for a stream stopped.
+ */
+public enum StopReason {
+  /**
+   * All requested packets were produced.
+   */
+  COMPLETE,
+  /**
+   * The frame provider had no more frames, and there was no silence left to send.
+   */
+  PROVIDER_EMPTY,
+  /**
+   * The queue of the stream had no room for more packets.
+   */
+  QUEUE_FULL,
+  /**
+   * Building a packet failed with an exception.
+   */
+  EXCEPTION
+}
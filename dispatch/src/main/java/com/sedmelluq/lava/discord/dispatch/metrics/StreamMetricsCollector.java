@@ -0,0 +1,147 @@
+package com.sedmelluq.lava.discord.dispatch.metrics;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects counters for each stream separately, for finding the streams which have trouble rather than seeing that some
+ * have. The counters of a stream are kept from the moment it is added to its send system until it is removed. Streams
+ * report to their own counters directly, so only adding and removing a stream touches the map of streams. Combine with
+ * {@link SendMetricsCollector} with {@link CompositeSendMetricsListener}.
+ */
+@ThreadSafe
+public class StreamMetricsCollector implements SendMetricsListener {
+  private final ConcurrentMap<Long, StreamMetrics> streams = new ConcurrentHashMap<>();
+
+  /**
+   * @return View of the counters of the current streams by stream identifier
+   */
+  public Map<Long, StreamMetrics> getStreams() {
+    return Collections.unmodifiableMap(streams);
+  }
+
+  /**
+   * @param streamId Stream identifier
+   * @return Counters of the stream, null if the stream has not been added or has been removed
+   */
+  public StreamMetrics getStream(long streamId) {
+    return streams.get(streamId);
+  }
+
+  @Override
+  public StreamMetricsListener onStreamAdded(long streamId) {
+    StreamMetrics stream = new StreamMetrics();
+    StreamMetrics existing = streams.putIfAbsent(streamId, stream);
+    return existing != null ? existing : stream;
+  }
+
+  @Override
+  public void onStreamRemoved(long streamId) {
+    streams.remove(streamId);
+  }
+
+  /**
+   * Counters of one stream.
+   */
+  @ThreadSafe
+  public static class StreamMetrics implements StreamMetricsListener {
+    private final LongAdder packetsQueued = new LongAdder();
+    private final LongAdder providerMisses = new LongAdder();
+    private final LongAdder silenceFrames = new LongAdder();
+    private final LongAdder queueFullRejections = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder providerExceptions = new LongAdder();
+    private final LongHistogram queueDepth = new LongHistogram();
+    private final LongHistogram populateTime = new LongHistogram();
+
+    @Override
+    public void onPacketsQueued(int count) {
+      packetsQueued.add(count);
+    }
+
+    @Override
+    public void onProviderMiss() {
+      providerMisses.increment();
+    }
+
+    @Override
+    public void onSilenceFrame() {
+      silenceFrames.increment();
+    }
+
+    @Override
+    public void onQueueFull() {
+      queueFullRejections.increment();
+    }
+
+    @Override
+    public void onSendFailed() {
+      sendFailures.increment();
+    }
+
+    @Override
+    public void onRefill(int queueDepth) {
+      this.queueDepth.record(queueDepth);
+    }
+
+    @Override
+    public void onPacketsProvided(long duration, int packets, StopReason reason) {
+      if (reason == StopReason.EXCEPTION) {
+        providerExceptions.increment();
+      }
+    }
+
+    @Override
+    public void onStreamPopulated(long duration, int queueDepth, int packets, StopReason reason) {
+      populateTime.record(duration);
+    }
+
+    public long getPacketsQueued() {
+      return packetsQueued.sum();
+    }
+
+    public long getProviderMisses() {
+      return providerMisses.sum();
+    }
+
+    public long getSilenceFrames() {
+      return silenceFrames.sum();
+    }
+
+    public long getQueueFullRejections() {
+      return queueFullRejections.sum();
+    }
+
+    /**
+     * @return Number of packets dropped because sending them failed with an exception
+     */
+    public long getSendFailures() {
+      return sendFailures.sum();
+    }
+
+    /**
+     * @return Number of times building packets for this stream failed with an exception
+     */
+    public long getProviderExceptions() {
+      return providerExceptions.sum();
+    }
+
+    /**
+     * @return Histogram of the number of packets left in the queue of this stream when it was refilled
+     */
+    public LongHistogram getQueueDepth() {
+      return queueDepth;
+    }
+
+    /**
+     * @return Histogram of the time it took to refill the queue of this stream in nanoseconds
+     */
+    public LongHistogram getPopulateTime() {
+      return populateTime;
+    }
+  }
+}
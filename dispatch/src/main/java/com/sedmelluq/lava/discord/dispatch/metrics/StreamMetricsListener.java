@@ -0,0 +1,87 @@
+package com.sedmelluq.lava.discord.dispatch.metrics;
+
+/**
+ * Receives the events of one stream, returned by {@link SendMetricsListener#onStreamAdded(long)}. The send system and
+ * the packet provider of the stream keep it and call it directly, so per-stream counters need no lookup by stream. The
+ * same events are also reported to the {@link SendMetricsListener} itself.
+ */
+public interface StreamMetricsListener {
+  StreamMetricsListener NONE = new StreamMetricsListener() {};
+
+  /**
+   * @param count Number of packets added to the queue of the stream, or sent for send systems which do not queue
+   */
+  default void onPacketsQueued(int count) {
+    // Nothing to do.
+  }
+
+  /**
+   * The frame provider of the stream was asked for a frame and did not have one.
+   */
+  default void onProviderMiss() {
+    // Nothing to do.
+  }
+
+  /**
+   * A silence frame was sent in place of audio, when starting or after the audio stopped.
+   */
+  default void onSilenceFrame() {
+    // Nothing to do.
+  }
+
+  /**
+   * A packet was rejected because the queue of the stream, or the socket buffer, was full.
+   */
+  default void onQueueFull() {
+    // Nothing to do.
+  }
+
+  /**
+   * Sending a packet failed with an exception, the packet was dropped.
+   */
+  default void onSendFailed() {
+    // Nothing to do.
+  }
+
+  /**
+   * @param queueDepth Number of packets which were still in the queue of the stream when it was refilled
+   */
+  default void onRefill(int queueDepth) {
+    // Nothing to do.
+  }
+
+  /**
+   * The packet provider of the stream is starting to build packets. Followed by
+   * {@link #onPacketsProvided(long, int, StopReason)} once it is done.
+   */
+  default void onProvideStarted() {
+    // Nothing to do.
+  }
+
+  /**
+   * @param duration Time it took to build the packets in nanoseconds
+   * @param packets Number of packets built
+   * @param reason Why it stopped building packets
+   */
+  default void onPacketsProvided(long duration, int packets, StopReason reason) {
+    // Nothing to do.
+  }
+
+  /**
+   * The send system is starting to refill the queue of the stream. Followed by
+   * {@link #onStreamPopulated(long, int, int, StopReason)} once it is done.
+   */
+  default void onPopulateStarted() {
+    // Nothing to do.
+  }
+
+  /**
+   * @param duration Time it took to build and queue the packets in nanoseconds
+   * @param queueDepth Number of packets which were still in the queue before the refill
+   * @param packets Number of packets added to the queue
+   * @param reason Why it stopped adding packets
+   */
+  default void onStreamPopulated(long duration, int queueDepth, int packets, StopReason reason) {
+    // Nothing to do.
+  }
+}
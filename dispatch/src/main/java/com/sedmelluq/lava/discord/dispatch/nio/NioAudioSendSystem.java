@@ -0,0 +1,71 @@
+package com.sedmelluq.lava.discord.dispatch.nio;
+
+import com.sedmelluq.lava.discord.dispatch.AudioSendSystem;
+import com.sedmelluq.lava.discord.dispatch.metrics.FrameLatencyTracer;
+import com.sedmelluq.lava.discord.dispatch.metrics.LongHistogram;
+import com.sedmelluq.lava.discord.dispatch.metrics.StreamMetricsListener;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketProvider;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+@ThreadSafe
+public class NioAudioSendSystem implements AudioSendSystem {
+  private final long identifier;
+  private final NioAudioSendSystemFactory audioSendSystem;
+  private final AudioPacketProvider packetProvider;
+  private final FrameLatencyTracer latencyTracer;
+  private volatile StreamMetricsListener streamMetrics = StreamMetricsListener.NONE;
+  int slotIndex = -1;
+  int slotPosition = -1;
+
+  public NioAudioSendSystem(long identifier, NioAudioSendSystemFactory audioSendSystem,
+                            AudioPacketProvider packetProvider) {
+
+    this.identifier = identifier;
+    this.audioSendSystem = audioSendSystem;
+    this.packetProvider = packetProvider;
+    this.latencyTracer = audioSendSystem.createLatencyTracer(identifier);
+  }
+
+  long getIdentifier() {
+    return identifier;
+  }
+
+  AudioPacketProvider getPacketProvider() {
+    return packetProvider;
+  }
+
+  /**
+   * @return Latency tracer of this stream, only used from the send thread of the stream, null if tracing is disabled
+   */
+  FrameLatencyTracer getLatencyTracer() {
+    return latencyTracer;
+  }
+
+  StreamMetricsListener getStreamMetrics() {
+    return streamMetrics;
+  }
+
+  /**
+   * @param streamMetrics Listener for the events of only this stream, from the metrics listener of the factory
+   */
+  void setStreamMetrics(StreamMetricsListener streamMetrics) {
+    this.streamMetrics = streamMetrics;
+    packetProvider.setStreamMetrics(streamMetrics);
+  }
+
+  @Override
+  public void start() {
+    audioSendSystem.addInstance(this);
+  }
+
+  @Override
+  public void shutdown() {
+    audioSendSystem.removeInstance(this);
+  }
+
+  @Override
+  public LongHistogram getFrameLatency() {
+    return latencyTracer != null ? latencyTracer.getLatency() : null;
+  }
+}
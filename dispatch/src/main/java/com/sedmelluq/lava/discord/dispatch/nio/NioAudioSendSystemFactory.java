@@ -0,0 +1,182 @@
+package com.sedmelluq.lava.discord.dispatch.nio;
+
+import com.sedmelluq.lava.discord.dispatch.AudioSendSystem;
+import com.sedmelluq.lava.discord.dispatch.AudioSendSystemFactory;
+import com.sedmelluq.lava.discord.dispatch.metrics.FrameLatencyTracer;
+import com.sedmelluq.lava.discord.dispatch.metrics.SendMetricsListener;
+import com.sedmelluq.lava.discord.dispatch.metrics.StreamMetricsListener;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketProvider;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentHashMap.KeySetView;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Send system factory which paces and sends the packets from Java threads through NIO datagram channels, for when the
+ * native UDP queue library is not available. Packets are built right when they are due, so there is nothing queued
+ * ahead for a stream. The explicit source socket handle of a stream is not supported, packets are always sent from
+ * the channel of the send thread.
+ */
+@ThreadSafe
+public class NioAudioSendSystemFactory implements AudioSendSystemFactory, AutoCloseable {
+  private static final int PACKET_INTERVAL = 20;
+  private static final int PACKET_BUFFER_SIZE = 1024;
+
+  private final int threadCount;
+  private final SendMetricsListener metricsListener;
+  private final int latencySampleInterval;
+  private final AtomicLong identifierCounter = new AtomicLong();
+  private final KeySetView<NioAudioSendSystem, Boolean> systems = ConcurrentHashMap.newKeySet();
+  private final Object lock = new Object();
+  private PacedSendThread[] sendThreads;
+  private boolean closed = false;
+
+  public NioAudioSendSystemFactory() {
+    this(new Builder());
+  }
+
+  private NioAudioSendSystemFactory(Builder builder) {
+    this.threadCount = builder.threadCount;
+    this.metricsListener = builder.metricsListener;
+    this.latencySampleInterval = builder.latencySampleInterval;
+  }
+
+  @Override
+  public AudioSendSystem create(AudioPacketProvider packetProvider) {
+    long identifier = identifierCounter.incrementAndGet();
+    packetProvider.setMetricsListener(metricsListener, identifier);
+    return new NioAudioSendSystem(identifier, this, packetProvider);
+  }
+
+  @Override
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+
+      if (sendThreads != null) {
+        stopSendThreads();
+      }
+    }
+  }
+
+  FrameLatencyTracer createLatencyTracer(long identifier) {
+    return latencySampleInterval > 0 ? new FrameLatencyTracer(identifier, latencySampleInterval,
+        TimeUnit.MILLISECONDS.toNanos(PACKET_INTERVAL), metricsListener) : null;
+  }
+
+  void addInstance(NioAudioSendSystem system) {
+    synchronized (lock) {
+      if (closed) {
+        throw new IllegalStateException("Factory is closed");
+      }
+
+      if (sendThreads == null) {
+        startSendThreads();
+      }
+
+      system.setStreamMetrics(metricsListener.onStreamAdded(system.getIdentifier()));
+      systems.add(system);
+      getSendThread(system).add(system);
+    }
+  }
+
+  void removeInstance(NioAudioSendSystem system) {
+    synchronized (lock) {
+      if (systems.remove(system) && sendThreads != null) {
+        getSendThread(system).remove(system);
+        system.setStreamMetrics(StreamMetricsListener.NONE);
+        metricsListener.onStreamRemoved(system.getIdentifier());
+
+        if (systems.isEmpty()) {
+          stopSendThreads();
+        }
+      }
+    }
+  }
+
+  private PacedSendThread getSendThread(NioAudioSendSystem system) {
+    return sendThreads[(int) (system.getIdentifier() % sendThreads.length)];
+  }
+
+  private void startSendThreads() {
+    PacedSendThread[] threads = new PacedSendThread[threadCount];
+
+    try {
+      for (int i = 0; i < threadCount; i++) {
+        threads[i] = new PacedSendThread(PACKET_INTERVAL, PACKET_BUFFER_SIZE, metricsListener);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to open a datagram channel.", e);
+    }
+
+    for (int i = 0; i < threadCount; i++) {
+      Thread thread = new Thread(threads[i], "nio-udp-send-" + i);
+      thread.setPriority((Thread.NORM_PRIORITY + Thread.MAX_PRIORITY) / 2);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    sendThreads = threads;
+  }
+
+  private void stopSendThreads() {
+    for (PacedSendThread thread : sendThreads) {
+      thread.stop();
+    }
+
+    sendThreads = null;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    private int threadCount = 1;
+    private SendMetricsListener metricsListener = SendMetricsListener.NONE;
+    private int latencySampleInterval = 0;
+
+    /**
+     * @param threadCount Number of send threads, each with its own datagram channel. Streams are assigned to them
+     *                    evenly.
+     */
+    public Builder threadCount(int threadCount) {
+      if (threadCount < 1) {
+        throw new IllegalArgumentException("Thread count must be at least 1.");
+      }
+
+      this.threadCount = threadCount;
+      return this;
+    }
+
+    /**
+     * @param metricsListener Listener for the events of the send path of all streams of this factory. Each tick of a
+     *                        send thread is reported as a populate cycle.
+     */
+    public Builder metricsListener(SendMetricsListener metricsListener) {
+      this.metricsListener = metricsListener;
+      return this;
+    }
+
+    /**
+     * @param latencySampleInterval Every how many packets of a stream one is traced from its frame provider to the
+     *                              socket, zero to disable tracing
+     * @see com.sedmelluq.lava.discord.dispatch.AudioSendSystem#getFrameLatency()
+     */
+    public Builder latencySampleInterval(int latencySampleInterval) {
+      if (latencySampleInterval < 0) {
+        throw new IllegalArgumentException("Latency sample interval must not be negative.");
+      }
+
+      this.latencySampleInterval = latencySampleInterval;
+      return this;
+    }
+
+    public NioAudioSendSystemFactory build() {
+      return new NioAudioSendSystemFactory(this);
+    }
+  }
+}
@@ -0,0 +1,211 @@
+package com.sedmelluq.lava.discord.dispatch.nio;
+
+import com.sedmelluq.lava.discord.dispatch.SocketAddressInfo;
+import com.sedmelluq.lava.discord.dispatch.metrics.FrameLatencyTracer;
+import com.sedmelluq.lava.discord.dispatch.metrics.SendMetricsListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends the packets of its streams from one thread through a non-blocking datagram channel. Streams are kept in a
+ * hashed timing wheel with one slot per tick of a packet interval. Each stream stays in the slot it was placed in, so
+ * it is sent to once per packet interval, and new streams go to the least loaded slot to spread the sends evenly.
+ * Ticks are scheduled from a fixed start time, so that late wake-ups do not add up to drift.
+ *
+ * Adding and removing streams may be done from any thread, everything else only happens on the send thread.
+ */
+@ThreadSafe
+class PacedSendThread implements Runnable {
+  private static final Logger log = LoggerFactory.getLogger(PacedSendThread.class);
+
+  private static final long TICK_DURATION = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final long packetInterval;
+  private final SendMetricsListener metricsListener;
+  private final NioAudioSendSystem[][] slots;
+  private final int[] slotCounts;
+  private final Queue<NioAudioSendSystem> addedSystems = new ConcurrentLinkedQueue<>();
+  private final Queue<NioAudioSendSystem> removedSystems = new ConcurrentLinkedQueue<>();
+  private final DatagramChannel channel;
+  private final ByteBuffer packetBuffer;
+  private volatile boolean running = true;
+
+  /**
+   * @param packetInterval Time interval between packets of a stream in milliseconds
+   * @param packetBufferSize Size of the buffer packets are built in
+   * @param metricsListener Listener for sent and dropped packets and tick durations
+   */
+  PacedSendThread(int packetInterval, int packetBufferSize, SendMetricsListener metricsListener) throws IOException {
+    this.packetInterval = TimeUnit.MILLISECONDS.toNanos(packetInterval);
+    this.metricsListener = metricsListener;
+    this.slots = new NioAudioSendSystem[(int) (this.packetInterval / TICK_DURATION)][];
+    this.slotCounts = new int[slots.length];
+    this.packetBuffer = ByteBuffer.allocateDirect(packetBufferSize);
+
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = new NioAudioSendSystem[16];
+    }
+
+    channel = DatagramChannel.open();
+    channel.configureBlocking(false);
+  }
+
+  void add(NioAudioSendSystem system) {
+    addedSystems.add(system);
+  }
+
+  void remove(NioAudioSendSystem system) {
+    removedSystems.add(system);
+  }
+
+  void stop() {
+    running = false;
+  }
+
+  @Override
+  public void run() {
+    long start = System.nanoTime();
+    long tick = 0;
+
+    try {
+      while (running) {
+        applyChanges();
+
+        long now = System.nanoTime();
+        long late = now - (start + tick * TICK_DURATION);
+
+        if (late < 0) {
+          LockSupport.parkNanos(-late);
+          continue;
+        } else if (late > packetInterval) {
+          // Fell behind by more than a whole interval, catching up would send a burst to every stream.
+          start += late;
+        }
+
+        metricsListener.onPopulateCycleStarted();
+        sendSlot((int) (tick % slots.length));
+        tick++;
+
+        long duration = System.nanoTime() - now;
+        metricsListener.onPopulateCycle(duration, duration > TICK_DURATION);
+      }
+    } finally {
+      closeChannel();
+    }
+  }
+
+  private void sendSlot(int slotIndex) {
+    NioAudioSendSystem[] slot = slots[slotIndex];
+    int count = slotCounts[slotIndex];
+
+    for (int i = 0; i < count; i++) {
+      sendPacket(slot[i]);
+    }
+  }
+
+  private void sendPacket(NioAudioSendSystem system) {
+    ByteBuffer buffer = packetBuffer;
+    buffer.clear();
+
+    FrameLatencyTracer latencyTracer = system.getLatencyTracer();
+    long buildTime = latencyTracer != null && latencyTracer.isNextSampled() ? System.nanoTime() : 0;
+
+    if (system.getPacketProvider().providePacket(buffer, true)) {
+      buffer.flip();
+
+      SocketAddressInfo addressInfo = system.getPacketProvider().getAddressInfo();
+
+      try {
+        if (channel.send(buffer, addressInfo.socketAddress) == 0) {
+          log.debug("Socket send buffer full, dropped a packet to {}.", addressInfo.socketAddress);
+          metricsListener.onQueueFull(system.getIdentifier());
+          system.getStreamMetrics().onQueueFull();
+        } else {
+          metricsListener.onPacketsQueued(system.getIdentifier(), 1);
+          system.getStreamMetrics().onPacketsQueued(1);
+
+          if (latencyTracer != null) {
+            latencyTracer.onSent(buildTime, buildTime != 0 ? System.nanoTime() : 0);
+          }
+        }
+      } catch (Exception e) {
+        log.debug("Failed to send a packet to {}.", addressInfo.socketAddress, e);
+        metricsListener.onSendFailed(system.getIdentifier());
+        system.getStreamMetrics().onSendFailed();
+      }
+    }
+  }
+
+  private void applyChanges() {
+    NioAudioSendSystem system;
+
+    // Additions first, a stream which is removed right after being added may have both pending.
+    while ((system = addedSystems.poll()) != null) {
+      addToSlot(system);
+    }
+
+    while ((system = removedSystems.poll()) != null) {
+      removeFromSlot(system);
+    }
+  }
+
+  private void addToSlot(NioAudioSendSystem system) {
+    if (system.slotIndex != -1) {
+      return;
+    }
+
+    int slotIndex = 0;
+
+    for (int i = 1; i < slotCounts.length; i++) {
+      if (slotCounts[i] < slotCounts[slotIndex]) {
+        slotIndex = i;
+      }
+    }
+
+    int position = slotCounts[slotIndex]++;
+
+    if (position == slots[slotIndex].length) {
+      slots[slotIndex] = Arrays.copyOf(slots[slotIndex], position * 2);
+    }
+
+    slots[slotIndex][position] = system;
+    system.slotIndex = slotIndex;
+    system.slotPosition = position;
+  }
+
+  private void removeFromSlot(NioAudioSendSystem system) {
+    int slotIndex = system.slotIndex;
+
+    if (slotIndex == -1) {
+      return;
+    }
+
+    NioAudioSendSystem[] slot = slots[slotIndex];
+    int last = --slotCounts[slotIndex];
+
+    slot[system.slotPosition] = slot[last];
+    slot[system.slotPosition].slotPosition = system.slotPosition;
+    slot[last] = null;
+
+    system.slotIndex = -1;
+    system.slotPosition = -1;
+  }
+
+  private void closeChannel() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      log.error("Failed to close datagram channel.", e);
+    }
+  }
+}
@@ -4,6 +4,7 @@ import javax.annotation.concurrent.NotThreadSafe;
 import java.nio.ByteBuffer;
 import java.util.concurrent.ThreadLocalRandom;
 
+import static com.sedmelluq.lava.discord.dispatch.packet.AudioPacketBuilder.NonceStrategy.AES256_GCM_RTPSIZE;
 import static com.sedmelluq.lava.discord.dispatch.packet.AudioPacketBuilder.NonceStrategy.INCREMENTING_INT;
 import static com.sedmelluq.lava.discord.dispatch.packet.AudioPacketBuilder.NonceStrategy.PACKET_HEADER;
 import static com.sedmelluq.lava.discord.dispatch.packet.AudioPacketBuilder.NonceStrategy.RANDOM_SEQUENCE;
@@ -14,6 +15,7 @@ public class AudioPacketBuilder {
 
   private static final int RTP_HEADER_BYTE_LENGTH = 12;
   private static final int XSALSA20_NONCE_LENGTH = 24;
+  private static final int POLY1305_TAG_LENGTH = 16;
   private static final byte RTP_VERSION_PAD_EXTEND = (byte) 0x80;
   private static final byte RTP_PAYLOAD_TYPE = (byte) 0x78;
 
@@ -23,14 +25,20 @@ public class AudioPacketBuilder {
   private static final int TIMESTAMP_INDEX = 4;
   private static final int SSRC_INDEX = 8;
 
+  private static final int PRECOMPUTED_KEYSTREAM_BLOCKS = 6;
+
   private final NonceStrategy nonceStrategy;
   private final byte[] packetHeader;
   private final byte[] nonceBytes;
   private final byte[] messageBytes;
   private final byte[] cipherBytes;
   private final ByteBuffer messageBuffer;
+  private final byte[] authenticationKey;
   private final AudioPacketEncryption.Poly1305 poly1305;
   private final AudioPacketEncryption.Salsa20 salsa20;
+  private final AudioPacketEncryption.AesGcm aesGcm;
+  private final int payloadIndex;
+  private PrecomputedKeystreams precomputedKeystreams;
   private int nonceCounter;
 
   public AudioPacketBuilder(byte[] secretKey, int sourceIdentifier, NonceStrategy nonceStrategy) {
@@ -40,8 +48,11 @@ public class AudioPacketBuilder {
     this.messageBytes = new byte[MAXIMUM_PACKET_SIZE + 32];
     this.cipherBytes = new byte[MAXIMUM_PACKET_SIZE + 32];
     this.messageBuffer = ByteBuffer.wrap(messageBytes);
-    this.poly1305 = new AudioPacketEncryption.Poly1305();
-    this.salsa20 = new AudioPacketEncryption.Salsa20(secretKey);
+    this.authenticationKey = new byte[32];
+    this.poly1305 = nonceStrategy != AES256_GCM_RTPSIZE ? new AudioPacketEncryption.Poly1305() : null;
+    this.salsa20 = nonceStrategy != AES256_GCM_RTPSIZE ? new AudioPacketEncryption.Salsa20(secretKey) : null;
+    this.aesGcm = nonceStrategy == AES256_GCM_RTPSIZE ? new AudioPacketEncryption.AesGcm(secretKey) : null;
+    this.payloadIndex = aesGcm != null ? RTP_HEADER_BYTE_LENGTH : RTP_HEADER_BYTE_LENGTH + POLY1305_TAG_LENGTH;
     this.nonceCounter = 0;
 
     packetHeader[RTP_VERSION_PAD_EXTEND_INDEX] = RTP_VERSION_PAD_EXTEND;
@@ -58,9 +69,159 @@ public class AudioPacketBuilder {
     return messageBuffer;
   }
 
+  /**
+   * Prepares the packet buffer for writing the payload directly into it. The payload is written at its final location
+   * in the packet, so that it can be encrypted in place by {@link #writeEncrypted(ByteBuffer, int, char, int)}.
+   *
+   * @param packetBuffer Buffer for the whole packet
+   * @param packetOffset Index of the start of the packet in the buffer
+   * @return The packet buffer, positioned at the start of the payload and limited to the maximum payload size
+   */
+  public ByteBuffer getPayloadBuffer(ByteBuffer packetBuffer, int packetOffset) {
+    packetBuffer.limit(packetBuffer.capacity() - getTrailerLength());
+    packetBuffer.position(packetOffset + payloadIndex);
+    return packetBuffer;
+  }
+
+  /**
+   * @return Number of bytes that follow the payload in a complete packet
+   */
+  public int getTrailerLength() {
+    int tagLength = aesGcm != null ? AudioPacketEncryption.AesGcm.TAG_LENGTH : 0;
+    return tagLength + getNonceSuffixLength();
+  }
+
   public void writeEncrypted(ByteBuffer output, char sequenceNumber, int timestamp) {
     int messageLength = messageBuffer.position();
 
+    updateHeaderAndNonce(sequenceNumber, timestamp);
+
+    output.put(packetHeader, 0, RTP_HEADER_BYTE_LENGTH);
+
+    if (aesGcm != null) {
+      aesGcm.process(nonceBytes, packetHeader, RTP_HEADER_BYTE_LENGTH, messageBytes, 32, messageLength - 32,
+          cipherBytes, 0);
+
+      output.put(cipherBytes, 0, messageLength - 32 + AudioPacketEncryption.AesGcm.TAG_LENGTH);
+    } else {
+      salsa20.process(nonceBytes, cipherBytes, messageBytes, messageLength);
+      poly1305.process(cipherBytes, cipherBytes, 32, messageLength - 32, cipherBytes, 16);
+
+      output.put(cipherBytes, 16, messageLength - 16);
+    }
+
+    writeNonceSuffix(output);
+  }
+
+  /**
+   * Encrypts a payload which was written with {@link #getPayloadBuffer(ByteBuffer, int)} in place, and fills in the
+   * header, authentication tag and nonce around it. No intermediate arrays are used, so with a direct buffer the
+   * packet never leaves native memory.
+   *
+   * @param packetBuffer Buffer positioned at the end of the payload
+   * @param packetOffset Index of the start of the packet in the buffer
+   * @param sequenceNumber Sequence number of the packet
+   * @param timestamp Timestamp of the packet
+   */
+  public void writeEncrypted(ByteBuffer packetBuffer, int packetOffset, char sequenceNumber, int timestamp) {
+    int payloadOffset = packetOffset + payloadIndex;
+    int payloadLength = packetBuffer.position() - payloadOffset;
+
+    updateHeaderAndNonce(sequenceNumber, timestamp);
+
+    for (int i = 0; i < RTP_HEADER_BYTE_LENGTH; i++) {
+      packetBuffer.put(packetOffset + i, packetHeader[i]);
+    }
+
+    if (aesGcm != null) {
+      aesGcm.process(nonceBytes, packetHeader, RTP_HEADER_BYTE_LENGTH, packetBuffer, payloadOffset, payloadLength);
+    } else {
+      int[] keystream = precomputedKeystreams != null ? precomputedKeystreams.take(nonceBytes) : null;
+
+      salsa20.process(nonceBytes, keystream, packetBuffer, payloadOffset, payloadLength, authenticationKey);
+      poly1305.process(authenticationKey, packetBuffer, payloadOffset, payloadLength, packetBuffer,
+          packetOffset + RTP_HEADER_BYTE_LENGTH);
+
+      packetBuffer.limit(packetBuffer.capacity());
+    }
+
+    writeNonceSuffix(packetBuffer);
+  }
+
+  /**
+   * Encrypts a batch of packets, one per buffer. The packet in each buffer starts at index zero, its payload must have
+   * been written with {@link #getPayloadBuffer(ByteBuffer, int)} and the buffer must be positioned at the end of the
+   * payload. This is only a convenience loop over {@link #writeEncrypted(ByteBuffer, int, char, int)}, the gain of
+   * batching comes from {@link AudioPacketProvider#providePackets(ByteBuffer[], int, boolean)} taking its lock once.
+   *
+   * @param packetBuffers Buffers containing the packets
+   * @param count Number of packets in the batch
+   * @param firstSequenceNumber Sequence number of the first packet, incremented by one for each following packet
+   * @param firstTimestamp Timestamp of the first packet
+   * @param timestampIncrement Timestamp difference between consecutive packets
+   */
+  public void writeEncrypted(ByteBuffer[] packetBuffers, int count, char firstSequenceNumber, int firstTimestamp,
+                             int timestampIncrement) {
+
+    char sequenceNumber = firstSequenceNumber;
+    int timestamp = firstTimestamp;
+
+    for (int i = 0; i < count; i++) {
+      writeEncrypted(packetBuffers[i], 0, sequenceNumber++, timestamp);
+      timestamp += timestampIncrement;
+    }
+  }
+
+  /**
+   * Computes the start of the keystream for the next packets ahead of time, so that encrypting them with
+   * {@link #writeEncrypted(ByteBuffer, int, char, int)} only has to apply it. Only has an effect with nonce strategies
+   * where the nonces of the next packets are known in advance. The sequence number and timestamp arguments only matter
+   * for {@link NonceStrategy#PACKET_HEADER} and must match what the next packets are written with, otherwise the
+   * precomputed keystreams are discarded when the packet is written.
+   *
+   * @param count Number of packets to have precomputed keystreams for
+   * @param nextSequenceNumber Sequence number of the next packet
+   * @param nextTimestamp Timestamp of the next packet
+   * @param timestampIncrement Timestamp difference between consecutive packets
+   */
+  public void precomputeKeystreams(int count, char nextSequenceNumber, int nextTimestamp, int timestampIncrement) {
+    if (nonceStrategy != INCREMENTING_INT && nonceStrategy != PACKET_HEADER) {
+      return;
+    }
+
+    if (precomputedKeystreams == null || precomputedKeystreams.capacity() < count) {
+      precomputedKeystreams = new PrecomputedKeystreams(count, PRECOMPUTED_KEYSTREAM_BLOCKS);
+    }
+
+    while (precomputedKeystreams.size() < count) {
+      int ahead = precomputedKeystreams.size();
+      byte[] nonce = precomputedKeystreams.tailNonce();
+
+      if (nonceStrategy == INCREMENTING_INT) {
+        int counter = nonceCounter + ahead + 1;
+        nonce[0] = (byte) (counter >> 24);
+        nonce[1] = (byte) (counter >> 16);
+        nonce[2] = (byte) (counter >> 8);
+        nonce[3] = (byte) counter;
+      } else {
+        char sequenceNumber = (char) (nextSequenceNumber + ahead);
+        int timestamp = nextTimestamp + ahead * timestampIncrement;
+
+        System.arraycopy(packetHeader, 0, nonce, 0, XSALSA20_NONCE_LENGTH);
+        nonce[SEQ_INDEX] = (byte) (sequenceNumber >> 8);
+        nonce[SEQ_INDEX + 1] = (byte) sequenceNumber;
+        nonce[TIMESTAMP_INDEX] = (byte) (timestamp >> 24);
+        nonce[TIMESTAMP_INDEX + 1] = (byte) (timestamp >> 16);
+        nonce[TIMESTAMP_INDEX + 2] = (byte) (timestamp >> 8);
+        nonce[TIMESTAMP_INDEX + 3] = (byte) timestamp;
+      }
+
+      salsa20.precompute(nonce, precomputedKeystreams.tailKeystream());
+      precomputedKeystreams.push();
+    }
+  }
+
+  private void updateHeaderAndNonce(char sequenceNumber, int timestamp) {
     packetHeader[SEQ_INDEX] = (byte) (sequenceNumber >> 8);
     packetHeader[SEQ_INDEX + 1] = (byte) sequenceNumber;
     packetHeader[TIMESTAMP_INDEX] = (byte) (timestamp >> 24);
@@ -68,7 +229,7 @@ public class AudioPacketBuilder {
     packetHeader[TIMESTAMP_INDEX + 2] = (byte) (timestamp >> 8);
     packetHeader[TIMESTAMP_INDEX + 3] = (byte) timestamp;
 
-    if (nonceStrategy == INCREMENTING_INT) {
+    if (nonceStrategy == INCREMENTING_INT || nonceStrategy == AES256_GCM_RTPSIZE) {
       nonceCounter++;
       nonceBytes[0] = (byte) (nonceCounter >> 24);
       nonceBytes[1] = (byte) (nonceCounter >> 16);
@@ -77,23 +238,37 @@ public class AudioPacketBuilder {
     } else if (nonceStrategy == RANDOM_SEQUENCE) {
       ThreadLocalRandom.current().nextBytes(nonceBytes);
     }
+  }
 
-    salsa20.process(nonceBytes, cipherBytes, messageBytes, messageLength);
-    poly1305.process(cipherBytes, cipherBytes, 32, messageLength - 32, cipherBytes, 16);
-
-    output.put(packetHeader, 0, RTP_HEADER_BYTE_LENGTH);
-    output.put(cipherBytes, 16, messageLength - 16);
-
-    if (nonceStrategy == INCREMENTING_INT) {
+  private void writeNonceSuffix(ByteBuffer output) {
+    if (nonceStrategy == INCREMENTING_INT || nonceStrategy == AES256_GCM_RTPSIZE) {
       output.put(nonceBytes, 0, 4);
     } else if (nonceStrategy == RANDOM_SEQUENCE) {
       output.put(nonceBytes);
     }
   }
 
+  private int getNonceSuffixLength() {
+    if (nonceStrategy == INCREMENTING_INT || nonceStrategy == AES256_GCM_RTPSIZE) {
+      return 4;
+    } else if (nonceStrategy == RANDOM_SEQUENCE) {
+      return XSALSA20_NONCE_LENGTH;
+    } else {
+      return 0;
+    }
+  }
+
   public enum NonceStrategy {
     INCREMENTING_INT,
     RANDOM_SEQUENCE,
-    PACKET_HEADER
+    PACKET_HEADER,
+    /**
+     * AES-256-GCM with the RTP header as authenticated data and a 4-byte incrementing nonce appended to the packet
+     * (Discord mode aead_aes256_gcm_rtpsize). Encryption is done by JCE instead of XSalsa20-Poly1305.
+     *
+     * Unlike the other strategies, this one allocates for every packet: JCE has to be initialised again for each nonce,
+     * which creates about 1000 bytes of garbage per packet.
+     */
+    AES256_GCM_RTPSIZE
   }
 }
@@ -1,79 +1,184 @@
 package com.sedmelluq.lava.discord.dispatch.packet;
 
 import javax.annotation.concurrent.NotThreadSafe;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
 
 public class AudioPacketEncryption {
+  /**
+   * XSalsa20 stream cipher. Key, nonce and block counter are kept as little-endian words, so bytes are only touched
+   * when the keystream is applied to the message.
+   */
   @NotThreadSafe
   public static final class Salsa20 {
-    private static final byte[] SIGMA = {101, 120, 112, 97, 110, 100, 32, 51, 50, 45, 98, 121, 116, 101, 32, 107};
-
-    private final byte[] nonceKey = new byte[32];
-    private final byte[] fixed = new byte[16];
-    private final byte[] xor = new byte[64];
-    private final byte[] secretKey;
+    private static final int SIGMA_0 = 0x61707865;
+    private static final int SIGMA_1 = 0x3320646e;
+    private static final int SIGMA_2 = 0x79622d32;
+    private static final int SIGMA_3 = 0x6b206574;
+
+    private final int[] secretKey = new int[8];
+    private final int[] nonceKey = new int[8];
+    private final int[] block = new int[16];
+    private int nonce0;
+    private int nonce1;
+    private long counter;
 
     public Salsa20(byte[] secretKey) {
-      this.secretKey = secretKey;
+      for (int i = 0; i < 8; i++) {
+        this.secretKey[i] = loadLittleEndian(secretKey, i * 4);
+      }
     }
 
     public void process(byte[] nonceBytes, byte[] cipherBytes, byte[] messageBytes, int messageLength) {
-      salsa20(nonceKey, nonceBytes, secretKey, SIGMA, true);
+      prepareKey(nonceBytes);
 
-      for (int i = 0; i < 8; i++) {
-        fixed[i] = nonceBytes[i + 16];
-        fixed[i + 8] = 0;
+      for (int position = 0; position < messageLength; position += 64) {
+        nextBlock();
+        xorBlock(cipherBytes, messageBytes, position, block, 0, Math.min(messageLength - position, 64));
       }
+    }
 
-      int cipherPosition = 0;
-      int messagePosition = 0;
-      int messageRemaining = messageLength;
+    /**
+     * Encrypts a message in place inside a buffer. The result is the same as with the array variant when the message
+     * is prefixed with 32 zero bytes: the first 32 bytes of the keystream are not applied to the message, but are
+     * written to the authentication key array instead.
+     *
+     * @param nonceBytes 24-byte nonce
+     * @param buffer Buffer containing the message, which is replaced with the cipher text
+     * @param offset Absolute index of the message in the buffer
+     * @param length Length of the message
+     * @param authenticationKey Array to write the first 32 bytes of the keystream to
+     */
+    public void process(byte[] nonceBytes, ByteBuffer buffer, int offset, int length, byte[] authenticationKey) {
+      process(nonceBytes, null, buffer, offset, length, authenticationKey);
+    }
 
-      while (messageRemaining >= 64) {
-        salsa20(xor, fixed, nonceKey, SIGMA, false);
+    /**
+     * Same as {@link #process(byte[], ByteBuffer, int, int, byte[])}, but takes the subkey and the first blocks of the
+     * keystream from the result of {@link #precompute(byte[], int[])} for the same nonce. Blocks beyond the precomputed
+     * ones are generated as usual.
+     *
+     * @param keystream Precomputed keystream for this nonce, or null to compute everything here
+     */
+    public void process(byte[] nonceBytes, int[] keystream, ByteBuffer buffer, int offset, int length,
+                        byte[] authenticationKey) {
+
+      boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+      int precomputedBlocks = 0;
+
+      if (keystream != null) {
+        System.arraycopy(keystream, 0, nonceKey, 0, 8);
+        setNonce(nonceBytes);
+        precomputedBlocks = (keystream.length - 8) / 16;
+      } else {
+        prepareKey(nonceBytes);
+      }
 
-        for (int i = 0; i < 64; i++) {
-          cipherBytes[cipherPosition + i] = (byte) ((messageBytes[messagePosition + i] ^ xor[i]) & 0xff);
+      // The first half of the first block is the authentication key, so the message starts 32 bytes into it.
+      for (int position = -32, blockIndex = 0; position < length; position += 64, blockIndex++) {
+        int[] words = block;
+        int wordIndex = 0;
+
+        if (blockIndex < precomputedBlocks) {
+          words = keystream;
+          wordIndex = 8 + blockIndex * 16;
+          counter++;
+        } else {
+          nextBlock();
         }
 
-        int u = 1;
+        if (position < 0) {
+          for (int i = 0; i < 8; i++) {
+            storeLittleEndian(authenticationKey, i * 4, words[wordIndex + i]);
+          }
 
-        for (int i = 8; i < 16; i++) {
-          u = u + (fixed[i] & 0xff);
-          fixed[i] = (byte) (u & 0xff);
-          u >>>= 8;
+          xorBlock(buffer, bigEndian, offset, words, wordIndex + 8, Math.min(length, 32));
+        } else {
+          xorBlock(buffer, bigEndian, offset + position, words, wordIndex, Math.min(length - position, 64));
         }
+      }
+    }
 
-        messageRemaining -= 64;
-        cipherPosition += 64;
-        messagePosition += 64;
+    /**
+     * Computes the subkey and the first blocks of the keystream for a nonce ahead of time, so that encrypting with that
+     * nonce later only has to apply them.
+     *
+     * @param nonceBytes 24-byte nonce
+     * @param keystream Array of 8 + 16 * n words, receives the subkey followed by the first n keystream blocks
+     */
+    public void precompute(byte[] nonceBytes, int[] keystream) {
+      prepareKey(nonceBytes);
+      System.arraycopy(nonceKey, 0, keystream, 0, 8);
+
+      for (int index = 8; index < keystream.length; index += 16) {
+        nextBlock();
+        System.arraycopy(block, 0, keystream, index, 16);
       }
+    }
 
-      if (messageRemaining > 0) {
-        salsa20(xor, fixed, nonceKey, SIGMA, false);
+    private void prepareKey(byte[] nonceBytes) {
+      salsa20(nonceKey, secretKey, loadLittleEndian(nonceBytes, 0), loadLittleEndian(nonceBytes, 4),
+          loadLittleEndian(nonceBytes, 8), loadLittleEndian(nonceBytes, 12), true);
 
-        for (int i = 0; i < messageRemaining; i++) {
-          cipherBytes[cipherPosition + i] = (byte) ((messageBytes[messagePosition + i] ^ xor[i]) & 0xff);
-        }
+      setNonce(nonceBytes);
+    }
+
+    private void setNonce(byte[] nonceBytes) {
+      nonce0 = loadLittleEndian(nonceBytes, 16);
+      nonce1 = loadLittleEndian(nonceBytes, 20);
+      counter = 0;
+    }
+
+    private void nextBlock() {
+      salsa20(block, nonceKey, nonce0, nonce1, (int) counter, (int) (counter >>> 32), false);
+      counter++;
+    }
+
+    private static void xorBlock(byte[] output, byte[] input, int offset, int[] words, int wordIndex, int length) {
+      int wordsEnd = wordIndex + (length >>> 2);
+
+      for (int i = wordIndex; i < wordsEnd; i++, offset += 4) {
+        int word = words[i];
+
+        output[offset] = (byte) (input[offset] ^ word);
+        output[offset + 1] = (byte) (input[offset + 1] ^ (word >>> 8));
+        output[offset + 2] = (byte) (input[offset + 2] ^ (word >>> 16));
+        output[offset + 3] = (byte) (input[offset + 3] ^ (word >>> 24));
+      }
+
+      for (int i = 0; i < (length & 3); i++, offset++) {
+        output[offset] = (byte) (input[offset] ^ (words[wordsEnd] >>> (i * 8)));
+      }
+    }
+
+    private static void xorBlock(ByteBuffer buffer, boolean bigEndian, int offset, int[] words, int wordIndex,
+                                 int length) {
+
+      int end = offset + length;
+
+      for (; offset + 8 <= end; offset += 8, wordIndex += 2) {
+        long word = (words[wordIndex] & 0xffffffffL) | ((long) words[wordIndex + 1] << 32);
+        buffer.putLong(offset, buffer.getLong(offset) ^ (bigEndian ? Long.reverseBytes(word) : word));
+      }
+
+      if (offset + 4 <= end) {
+        int word = words[wordIndex++];
+        buffer.putInt(offset, buffer.getInt(offset) ^ (bigEndian ? Integer.reverseBytes(word) : word));
+        offset += 4;
+      }
+
+      for (int shift = 0; offset < end; offset++, shift += 8) {
+        buffer.put(offset, (byte) (buffer.get(offset) ^ (words[wordIndex] >>> shift)));
       }
     }
 
-    private static void salsa20(byte [] o, byte [] p, byte [] k, byte [] c, boolean half) {
-      int j0  = c[ 0] & 0xff | (c[ 1] & 0xff)<<8 | (c[ 2] & 0xff)<<16 | (c[ 3] & 0xff)<<24,
-          j1  = k[ 0] & 0xff | (k[ 1] & 0xff)<<8 | (k[ 2] & 0xff)<<16 | (k[ 3] & 0xff)<<24,
-          j2  = k[ 4] & 0xff | (k[ 5] & 0xff)<<8 | (k[ 6] & 0xff)<<16 | (k[ 7] & 0xff)<<24,
-          j3  = k[ 8] & 0xff | (k[ 9] & 0xff)<<8 | (k[10] & 0xff)<<16 | (k[11] & 0xff)<<24,
-          j4  = k[12] & 0xff | (k[13] & 0xff)<<8 | (k[14] & 0xff)<<16 | (k[15] & 0xff)<<24,
-          j5  = c[ 4] & 0xff | (c[ 5] & 0xff)<<8 | (c[ 6] & 0xff)<<16 | (c[ 7] & 0xff)<<24,
-          j6  = p[ 0] & 0xff | (p[ 1] & 0xff)<<8 | (p[ 2] & 0xff)<<16 | (p[ 3] & 0xff)<<24,
-          j7  = p[ 4] & 0xff | (p[ 5] & 0xff)<<8 | (p[ 6] & 0xff)<<16 | (p[ 7] & 0xff)<<24,
-          j8  = p[ 8] & 0xff | (p[ 9] & 0xff)<<8 | (p[10] & 0xff)<<16 | (p[11] & 0xff)<<24,
-          j9  = p[12] & 0xff | (p[13] & 0xff)<<8 | (p[14] & 0xff)<<16 | (p[15] & 0xff)<<24,
-          j10 = c[ 8] & 0xff | (c[ 9] & 0xff)<<8 | (c[10] & 0xff)<<16 | (c[11] & 0xff)<<24,
-          j11 = k[16] & 0xff | (k[17] & 0xff)<<8 | (k[18] & 0xff)<<16 | (k[19] & 0xff)<<24,
-          j12 = k[20] & 0xff | (k[21] & 0xff)<<8 | (k[22] & 0xff)<<16 | (k[23] & 0xff)<<24,
-          j13 = k[24] & 0xff | (k[25] & 0xff)<<8 | (k[26] & 0xff)<<16 | (k[27] & 0xff)<<24,
-          j14 = k[28] & 0xff | (k[29] & 0xff)<<8 | (k[30] & 0xff)<<16 | (k[31] & 0xff)<<24,
-          j15 = c[12] & 0xff | (c[13] & 0xff)<<8 | (c[14] & 0xff)<<16 | (c[15] & 0xff)<<24;
+    private static void salsa20(int[] o, int[] k, int n0, int n1, int n2, int n3, boolean half) {
+      int j0 = SIGMA_0, j1 = k[0], j2 = k[1], j3 = k[2], j4 = k[3], j5 = SIGMA_1, j6 = n0, j7 = n1, j8 = n2, j9 = n3,
+          j10 = SIGMA_2, j11 = k[4], j12 = k[5], j13 = k[6], j14 = k[7], j15 = SIGMA_3;
 
       int x0 = j0, x1 = j1, x2 = j2, x3 = j3, x4 = j4, x5 = j5, x6 = j6, x7 = j7,
           x8 = j8, x9 = j9, x10 = j10, x11 = j11, x12 = j12, x13 = j13, x14 = j14,
@@ -154,474 +259,318 @@ public class AudioPacketEncryption {
       }
 
       if (half) {
-        o[0] = (byte) (x0 & 0xff);
-        o[1] = (byte) (x0 >>> 8 & 0xff);
-        o[2] = (byte) (x0 >>> 16 & 0xff);
-        o[3] = (byte) (x0 >>> 24 & 0xff);
-
-        o[4] = (byte) (x5 & 0xff);
-        o[5] = (byte) (x5 >>> 8 & 0xff);
-        o[6] = (byte) (x5 >>> 16 & 0xff);
-        o[7] = (byte) (x5 >>> 24 & 0xff);
-
-        o[8] = (byte) (x10 & 0xff);
-        o[9] = (byte) (x10 >>> 8 & 0xff);
-        o[10] = (byte) (x10 >>> 16 & 0xff);
-        o[11] = (byte) (x10 >>> 24 & 0xff);
-
-        o[12] = (byte) (x15 & 0xff);
-        o[13] = (byte) (x15 >>> 8 & 0xff);
-        o[14] = (byte) (x15 >>> 16 & 0xff);
-        o[15] = (byte) (x15 >>> 24 & 0xff);
-
-        o[16] = (byte) (x6 & 0xff);
-        o[17] = (byte) (x6 >>> 8 & 0xff);
-        o[18] = (byte) (x6 >>> 16 & 0xff);
-        o[19] = (byte) (x6 >>> 24 & 0xff);
-
-        o[20] = (byte) (x7 & 0xff);
-        o[21] = (byte) (x7 >>> 8 & 0xff);
-        o[22] = (byte) (x7 >>> 16 & 0xff);
-        o[23] = (byte) (x7 >>> 24 & 0xff);
-
-        o[24] = (byte) (x8 & 0xff);
-        o[25] = (byte) (x8 >>> 8 & 0xff);
-        o[26] = (byte) (x8 >>> 16 & 0xff);
-        o[27] = (byte) (x8 >>> 24 & 0xff);
-
-        o[28] = (byte) (x9 & 0xff);
-        o[29] = (byte) (x9 >>> 8 & 0xff);
-        o[30] = (byte) (x9 >>> 16 & 0xff);
-        o[31] = (byte) (x9 >>> 24 & 0xff);
+        o[0] = x0;
+        o[1] = x5;
+        o[2] = x10;
+        o[3] = x15;
+        o[4] = x6;
+        o[5] = x7;
+        o[6] = x8;
+        o[7] = x9;
       } else {
-        x0 += j0;
-        x1 += j1;
-        x2 += j2;
-        x3 += j3;
-        x4 += j4;
-        x5 += j5;
-        x6 += j6;
-        x7 += j7;
-        x8 += j8;
-        x9 += j9;
-        x10 += j10;
-        x11 += j11;
-        x12 += j12;
-        x13 += j13;
-        x14 += j14;
-        x15 += j15;
-
-        o[0] = (byte) (x0 & 0xff);
-        o[1] = (byte) (x0 >>> 8 & 0xff);
-        o[2] = (byte) (x0 >>> 16 & 0xff);
-        o[3] = (byte) (x0 >>> 24 & 0xff);
-
-        o[4] = (byte) (x1 & 0xff);
-        o[5] = (byte) (x1 >>> 8 & 0xff);
-        o[6] = (byte) (x1 >>> 16 & 0xff);
-        o[7] = (byte) (x1 >>> 24 & 0xff);
-
-        o[8] = (byte) (x2 & 0xff);
-        o[9] = (byte) (x2 >>> 8 & 0xff);
-        o[10] = (byte) (x2 >>> 16 & 0xff);
-        o[11] = (byte) (x2 >>> 24 & 0xff);
-
-        o[12] = (byte) (x3 & 0xff);
-        o[13] = (byte) (x3 >>> 8 & 0xff);
-        o[14] = (byte) (x3 >>> 16 & 0xff);
-        o[15] = (byte) (x3 >>> 24 & 0xff);
-
-        o[16] = (byte) (x4 & 0xff);
-        o[17] = (byte) (x4 >>> 8 & 0xff);
-        o[18] = (byte) (x4 >>> 16 & 0xff);
-        o[19] = (byte) (x4 >>> 24 & 0xff);
-
-        o[20] = (byte) (x5 & 0xff);
-        o[21] = (byte) (x5 >>> 8 & 0xff);
-        o[22] = (byte) (x5 >>> 16 & 0xff);
-        o[23] = (byte) (x5 >>> 24 & 0xff);
-
-        o[24] = (byte) (x6 & 0xff);
-        o[25] = (byte) (x6 >>> 8 & 0xff);
-        o[26] = (byte) (x6 >>> 16 & 0xff);
-        o[27] = (byte) (x6 >>> 24 & 0xff);
-
-        o[28] = (byte) (x7 & 0xff);
-        o[29] = (byte) (x7 >>> 8 & 0xff);
-        o[30] = (byte) (x7 >>> 16 & 0xff);
-        o[31] = (byte) (x7 >>> 24 & 0xff);
-
-        o[32] = (byte) (x8 & 0xff);
-        o[33] = (byte) (x8 >>> 8 & 0xff);
-        o[34] = (byte) (x8 >>> 16 & 0xff);
-        o[35] = (byte) (x8 >>> 24 & 0xff);
-
-        o[36] = (byte) (x9 & 0xff);
-        o[37] = (byte) (x9 >>> 8 & 0xff);
-        o[38] = (byte) (x9 >>> 16 & 0xff);
-        o[39] = (byte) (x9 >>> 24 & 0xff);
-
-        o[40] = (byte) (x10 & 0xff);
-        o[41] = (byte) (x10 >>> 8 & 0xff);
-        o[42] = (byte) (x10 >>> 16 & 0xff);
-        o[43] = (byte) (x10 >>> 24 & 0xff);
-
-        o[44] = (byte) (x11 & 0xff);
-        o[45] = (byte) (x11 >>> 8 & 0xff);
-        o[46] = (byte) (x11 >>> 16 & 0xff);
-        o[47] = (byte) (x11 >>> 24 & 0xff);
-
-        o[48] = (byte) (x12 & 0xff);
-        o[49] = (byte) (x12 >>> 8 & 0xff);
-        o[50] = (byte) (x12 >>> 16 & 0xff);
-        o[51] = (byte) (x12 >>> 24 & 0xff);
-
-        o[52] = (byte) (x13 & 0xff);
-        o[53] = (byte) (x13 >>> 8 & 0xff);
-        o[54] = (byte) (x13 >>> 16 & 0xff);
-        o[55] = (byte) (x13 >>> 24 & 0xff);
-
-        o[56] = (byte) (x14 & 0xff);
-        o[57] = (byte) (x14 >>> 8 & 0xff);
-        o[58] = (byte) (x14 >>> 16 & 0xff);
-        o[59] = (byte) (x14 >>> 24 & 0xff);
-
-        o[60] = (byte) (x15 & 0xff);
-        o[61] = (byte) (x15 >>> 8 & 0xff);
-        o[62] = (byte) (x15 >>> 16 & 0xff);
-        o[63] = (byte) (x15 >>> 24 & 0xff);
+        o[0] = x0 + j0;
+        o[1] = x1 + j1;
+        o[2] = x2 + j2;
+        o[3] = x3 + j3;
+        o[4] = x4 + j4;
+        o[5] = x5 + j5;
+        o[6] = x6 + j6;
+        o[7] = x7 + j7;
+        o[8] = x8 + j8;
+        o[9] = x9 + j9;
+        o[10] = x10 + j10;
+        o[11] = x11 + j11;
+        o[12] = x12 + j12;
+        o[13] = x13 + j13;
+        o[14] = x14 + j14;
+        o[15] = x15 + j15;
       }
     }
   }
 
+  /**
+   * Poly1305 MAC with the accumulator and key in five 26-bit limbs. Products of two limbs fit into 52 bits, so each
+   * limb of a block multiplication is a sum of five 64-bit multiplications without intermediate carries.
+   */
   @NotThreadSafe
   public static final class Poly1305 {
-    private final int[] pad;
-    private final int[] h;
-    private final int[] g;
+    private static final long LIMB_MASK = 0x3ffffff;
+
+    private final byte[] tail;
+    private int tag0;
+    private int tag1;
+    private int tag2;
+    private int tag3;
 
     public Poly1305() {
-      this.pad = new int[8];
-      this.h = new int[10];
-      this.g = new int[10];
+      this.tail = new byte[16];
     }
 
     public void process(byte[] key, byte[] message, int messageOffset, int length, byte[] output, int outputOffset) {
-      preparePad(key);
-      blocks(key, message, messageOffset, length);
-      complete();
+      authenticate(key, message, null, false, messageOffset, length);
 
-      for (int i = 0; i < 8; i++) {
-        output[outputOffset++] = (byte) (h[i] & 0xff);
-        output[outputOffset++] = (byte) ((h[i] >>> 8) & 0xff);
-      }
+      storeLittleEndian(output, outputOffset, tag0);
+      storeLittleEndian(output, outputOffset + 4, tag1);
+      storeLittleEndian(output, outputOffset + 8, tag2);
+      storeLittleEndian(output, outputOffset + 12, tag3);
     }
 
-    private void preparePad(byte[] key) {
-      pad[0] = key[16] & 0xff | (key[17] & 0xff) << 8;
-      pad[1] = key[18] & 0xff | (key[19] & 0xff) << 8;
-      pad[2] = key[20] & 0xff | (key[21] & 0xff) << 8;
-      pad[3] = key[22] & 0xff | (key[23] & 0xff) << 8;
-      pad[4] = key[24] & 0xff | (key[25] & 0xff) << 8;
-      pad[5] = key[26] & 0xff | (key[27] & 0xff) << 8;
-      pad[6] = key[28] & 0xff | (key[29] & 0xff) << 8;
-      pad[7] = key[30] & 0xff | (key[31] & 0xff) << 8;
+    /**
+     * Same as the array variant, but reads the message from and writes the tag to buffers. Uses absolute indexes, so
+     * the positions of the buffers are not modified.
+     */
+    public void process(byte[] key, ByteBuffer message, int messageOffset, int length, ByteBuffer output,
+                        int outputOffset) {
+
+      authenticate(key, null, message, message.order() == ByteOrder.BIG_ENDIAN, messageOffset, length);
+
+      boolean bigEndian = output.order() == ByteOrder.BIG_ENDIAN;
+      output.putInt(outputOffset, bigEndian ? Integer.reverseBytes(tag0) : tag0);
+      output.putInt(outputOffset + 4, bigEndian ? Integer.reverseBytes(tag1) : tag1);
+      output.putInt(outputOffset + 8, bigEndian ? Integer.reverseBytes(tag2) : tag2);
+      output.putInt(outputOffset + 12, bigEndian ? Integer.reverseBytes(tag3) : tag3);
     }
 
-    private void blocks(byte[] key, byte[] message, int offset, int length) {
-      int highBit = 1 << 11L;
-
-      int h0 = 0, h1 = 0, h2 = 0, h3 = 0, h4 = 0, h5 = 0, h6 = 0, h7 = 0, h8 = 0, h9 = 0;
-
-      int t0 = key[ 0] & 0xff | (key[ 1] & 0xff) << 8;
-      int t1 = key[ 2] & 0xff | (key[ 3] & 0xff) << 8;
-      int t2 = key[ 4] & 0xff | (key[ 5] & 0xff) << 8;
-      int t3 = key[ 6] & 0xff | (key[ 7] & 0xff) << 8;
-      int t4 = key[ 8] & 0xff | (key[ 9] & 0xff) << 8;
-      int t5 = key[10] & 0xff | (key[11] & 0xff) << 8;
-      int t6 = key[12] & 0xff | (key[13] & 0xff) << 8;
-      int t7 = key[14] & 0xff | (key[15] & 0xff) << 8;
-
-      int r0 = ( t0                     ) & 0x1fff;
-      int r1 = ((t0 >>> 13) | (t1 <<  3)) & 0x1fff;
-      int r2 = ((t1 >>> 10) | (t2 <<  6)) & 0x1f03;
-      int r3 = ((t2 >>>  7) | (t3 <<  9)) & 0x1fff;
-      int r4 = ((t3 >>>  4) | (t4 << 12)) & 0x00ff;
-      int r5 = ((t4 >>>  1)) & 0x1ffe;
-      int r6 = ((t4 >>> 14) | (t5 <<  2)) & 0x1fff;
-      int r7 = ((t5 >>> 11) | (t6 <<  5)) & 0x1f81;
-      int r8 = ((t6 >>>  8) | (t7 <<  8)) & 0x1fff;
-      int r9 = ((t7 >>>  5)) & 0x007f;
+    private void authenticate(byte[] key, byte[] array, ByteBuffer buffer, boolean bigEndian, int offset,
+                              int length) {
+
+      int t0 = loadLittleEndian(key, 0);
+      int t1 = loadLittleEndian(key, 4);
+      int t2 = loadLittleEndian(key, 8);
+      int t3 = loadLittleEndian(key, 12);
+
+      long r0 = t0 & 0x3ffffff;
+      long r1 = ((t0 >>> 26) | (t1 << 6)) & 0x3ffff03;
+      long r2 = ((t1 >>> 20) | (t2 << 12)) & 0x3ffc0ff;
+      long r3 = ((t2 >>> 14) | (t3 << 18)) & 0x3f03fff;
+      long r4 = (t3 >>> 8) & 0x00fffff;
+
+      long s1 = r1 * 5;
+      long s2 = r2 * 5;
+      long s3 = r3 * 5;
+      long s4 = r4 * 5;
+
+      long h0 = 0, h1 = 0, h2 = 0, h3 = 0, h4 = 0;
+      int highBit = 1 << 24;
 
       while (length > 0) {
         if (length < 16) {
-          int end = offset + length;
-          int alignedEnd = offset + 16;
+          for (int i = 0; i < length; i++) {
+            tail[i] = array != null ? array[offset + i] : buffer.get(offset + i);
+          }
 
-          message[end++] = 1;
+          tail[length] = 1;
 
-          for (; end < alignedEnd; end++) {
-            message[end] = 0;
+          for (int i = length + 1; i < 16; i++) {
+            tail[i] = 0;
           }
 
+          array = tail;
+          buffer = null;
+          offset = 0;
+          length = 16;
           highBit = 0;
         }
 
-        t0 = message[offset   ] & 0xff | (message[offset+ 1] & 0xff) << 8;
-        t1 = message[offset+ 2] & 0xff | (message[offset+ 3] & 0xff) << 8;
-        t2 = message[offset+ 4] & 0xff | (message[offset+ 5] & 0xff) << 8;
-        t3 = message[offset+ 6] & 0xff | (message[offset+ 7] & 0xff) << 8;
-        t4 = message[offset+ 8] & 0xff | (message[offset+ 9] & 0xff) << 8;
-        t5 = message[offset+10] & 0xff | (message[offset+11] & 0xff) << 8;
-        t6 = message[offset+12] & 0xff | (message[offset+13] & 0xff) << 8;
-        t7 = message[offset+14] & 0xff | (message[offset+15] & 0xff) << 8;
-
-        h0 += ( t0                     ) & 0x1fff;
-        h1 += ((t0 >>> 13) | (t1 <<  3)) & 0x1fff;
-        h2 += ((t1 >>> 10) | (t2 <<  6)) & 0x1fff;
-        h3 += ((t2 >>>  7) | (t3 <<  9)) & 0x1fff;
-        h4 += ((t3 >>>  4) | (t4 << 12)) & 0x1fff;
-        h5 += ((t4 >>>  1)) & 0x1fff;
-        h6 += ((t4 >>> 14) | (t5 <<  2)) & 0x1fff;
-        h7 += ((t5 >>> 11) | (t6 <<  5)) & 0x1fff;
-        h8 += ((t6 >>>  8) | (t7 <<  8)) & 0x1fff;
-        h9 += ((t7 >>> 5)) | highBit;
-
-        int c = 0;
-
-        int d0 = c;
-        d0 += h0 * r0;
-        d0 += h1 * (5 * r9);
-        d0 += h2 * (5 * r8);
-        d0 += h3 * (5 * r7);
-        d0 += h4 * (5 * r6);
-        c = (d0 >>> 13); d0 &= 0x1fff;
-        d0 += h5 * (5 * r5);
-        d0 += h6 * (5 * r4);
-        d0 += h7 * (5 * r3);
-        d0 += h8 * (5 * r2);
-        d0 += h9 * (5 * r1);
-        c += (d0 >>> 13); d0 &= 0x1fff;
-
-        int d1 = c;
-        d1 += h0 * r1;
-        d1 += h1 * r0;
-        d1 += h2 * (5 * r9);
-        d1 += h3 * (5 * r8);
-        d1 += h4 * (5 * r7);
-        c = (d1 >>> 13); d1 &= 0x1fff;
-        d1 += h5 * (5 * r6);
-        d1 += h6 * (5 * r5);
-        d1 += h7 * (5 * r4);
-        d1 += h8 * (5 * r3);
-        d1 += h9 * (5 * r2);
-        c += (d1 >>> 13); d1 &= 0x1fff;
-
-        int d2 = c;
-        d2 += h0 * r2;
-        d2 += h1 * r1;
-        d2 += h2 * r0;
-        d2 += h3 * (5 * r9);
-        d2 += h4 * (5 * r8);
-        c = (d2 >>> 13); d2 &= 0x1fff;
-        d2 += h5 * (5 * r7);
-        d2 += h6 * (5 * r6);
-        d2 += h7 * (5 * r5);
-        d2 += h8 * (5 * r4);
-        d2 += h9 * (5 * r3);
-        c += (d2 >>> 13); d2 &= 0x1fff;
-
-        int d3 = c;
-        d3 += h0 * r3;
-        d3 += h1 * r2;
-        d3 += h2 * r1;
-        d3 += h3 * r0;
-        d3 += h4 * (5 * r9);
-        c = (d3 >>> 13); d3 &= 0x1fff;
-        d3 += h5 * (5 * r8);
-        d3 += h6 * (5 * r7);
-        d3 += h7 * (5 * r6);
-        d3 += h8 * (5 * r5);
-        d3 += h9 * (5 * r4);
-        c += (d3 >>> 13); d3 &= 0x1fff;
-
-        int d4 = c;
-        d4 += h0 * r4;
-        d4 += h1 * r3;
-        d4 += h2 * r2;
-        d4 += h3 * r1;
-        d4 += h4 * r0;
-        c = (d4 >>> 13); d4 &= 0x1fff;
-        d4 += h5 * (5 * r9);
-        d4 += h6 * (5 * r8);
-        d4 += h7 * (5 * r7);
-        d4 += h8 * (5 * r6);
-        d4 += h9 * (5 * r5);
-        c += (d4 >>> 13); d4 &= 0x1fff;
-
-        int d5 = c;
-        d5 += h0 * r5;
-        d5 += h1 * r4;
-        d5 += h2 * r3;
-        d5 += h3 * r2;
-        d5 += h4 * r1;
-        c = (d5 >>> 13); d5 &= 0x1fff;
-        d5 += h5 * r0;
-        d5 += h6 * (5 * r9);
-        d5 += h7 * (5 * r8);
-        d5 += h8 * (5 * r7);
-        d5 += h9 * (5 * r6);
-        c += (d5 >>> 13); d5 &= 0x1fff;
-
-        int d6 = c;
-        d6 += h0 * r6;
-        d6 += h1 * r5;
-        d6 += h2 * r4;
-        d6 += h3 * r3;
-        d6 += h4 * r2;
-        c = (d6 >>> 13); d6 &= 0x1fff;
-        d6 += h5 * r1;
-        d6 += h6 * r0;
-        d6 += h7 * (5 * r9);
-        d6 += h8 * (5 * r8);
-        d6 += h9 * (5 * r7);
-        c += (d6 >>> 13); d6 &= 0x1fff;
-
-        int d7 = c;
-        d7 += h0 * r7;
-        d7 += h1 * r6;
-        d7 += h2 * r5;
-        d7 += h3 * r4;
-        d7 += h4 * r3;
-        c = (d7 >>> 13); d7 &= 0x1fff;
-        d7 += h5 * r2;
-        d7 += h6 * r1;
-        d7 += h7 * r0;
-        d7 += h8 * (5 * r9);
-        d7 += h9 * (5 * r8);
-        c += (d7 >>> 13); d7 &= 0x1fff;
-
-        int d8 = c;
-        d8 += h0 * r8;
-        d8 += h1 * r7;
-        d8 += h2 * r6;
-        d8 += h3 * r5;
-        d8 += h4 * r4;
-        c = (d8 >>> 13); d8 &= 0x1fff;
-        d8 += h5 * r3;
-        d8 += h6 * r2;
-        d8 += h7 * r1;
-        d8 += h8 * r0;
-        d8 += h9 * (5 * r9);
-        c += (d8 >>> 13); d8 &= 0x1fff;
-
-        int d9 = c;
-        d9 += h0 * r9;
-        d9 += h1 * r8;
-        d9 += h2 * r7;
-        d9 += h3 * r6;
-        d9 += h4 * r5;
-        c = (d9 >>> 13); d9 &= 0x1fff;
-        d9 += h5 * r4;
-        d9 += h6 * r3;
-        d9 += h7 * r2;
-        d9 += h8 * r1;
-        d9 += h9 * r0;
-        c += (d9 >>> 13); d9 &= 0x1fff;
-
-        c += c << 2;
-        c += d0;
-        d0 = c & 0x1fff;
-        c = (c >>> 13);
-        d1 += c;
+        if (array != null) {
+          t0 = loadLittleEndian(array, offset);
+          t1 = loadLittleEndian(array, offset + 4);
+          t2 = loadLittleEndian(array, offset + 8);
+          t3 = loadLittleEndian(array, offset + 12);
+        } else {
+          t0 = loadLittleEndian(buffer, bigEndian, offset);
+          t1 = loadLittleEndian(buffer, bigEndian, offset + 4);
+          t2 = loadLittleEndian(buffer, bigEndian, offset + 8);
+          t3 = loadLittleEndian(buffer, bigEndian, offset + 12);
+        }
 
-        h0 = d0;
-        h1 = d1;
-        h2 = d2;
-        h3 = d3;
-        h4 = d4;
-        h5 = d5;
-        h6 = d6;
-        h7 = d7;
-        h8 = d8;
-        h9 = d9;
+        h0 += t0 & 0x3ffffff;
+        h1 += ((t0 >>> 26) | (t1 << 6)) & 0x3ffffff;
+        h2 += ((t1 >>> 20) | (t2 << 12)) & 0x3ffffff;
+        h3 += ((t2 >>> 14) | (t3 << 18)) & 0x3ffffff;
+        h4 += (t3 >>> 8) | highBit;
+
+        long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+        long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+        long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+        long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+        long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+        long c = d0 >>> 26;
+        h0 = d0 & LIMB_MASK;
+        d1 += c;
+        c = d1 >>> 26;
+        h1 = d1 & LIMB_MASK;
+        d2 += c;
+        c = d2 >>> 26;
+        h2 = d2 & LIMB_MASK;
+        d3 += c;
+        c = d3 >>> 26;
+        h3 = d3 & LIMB_MASK;
+        d4 += c;
+        c = d4 >>> 26;
+        h4 = d4 & LIMB_MASK;
+        h0 += c * 5;
+        c = h0 >>> 26;
+        h0 &= LIMB_MASK;
+        h1 += c;
 
         offset += 16;
         length -= 16;
       }
 
-      h[0] = h0;
-      h[1] = h1;
-      h[2] = h2;
-      h[3] = h3;
-      h[4] = h4;
-      h[5] = h5;
-      h[6] = h6;
-      h[7] = h7;
-      h[8] = h8;
-      h[9] = h9;
+      long c = h1 >>> 26;
+      h1 &= LIMB_MASK;
+      h2 += c;
+      c = h2 >>> 26;
+      h2 &= LIMB_MASK;
+      h3 += c;
+      c = h3 >>> 26;
+      h3 &= LIMB_MASK;
+      h4 += c;
+      c = h4 >>> 26;
+      h4 &= LIMB_MASK;
+      h0 += c * 5;
+      c = h0 >>> 26;
+      h0 &= LIMB_MASK;
+      h1 += c;
+
+      // Compute h + -p and select it if it did not underflow, meaning h was not fully reduced.
+      long g0 = h0 + 5;
+      c = g0 >>> 26;
+      g0 &= LIMB_MASK;
+      long g1 = h1 + c;
+      c = g1 >>> 26;
+      g1 &= LIMB_MASK;
+      long g2 = h2 + c;
+      c = g2 >>> 26;
+      g2 &= LIMB_MASK;
+      long g3 = h3 + c;
+      c = g3 >>> 26;
+      g3 &= LIMB_MASK;
+      long g4 = h4 + c - (1L << 26);
+
+      long mask = (g4 >>> 63) - 1;
+      h0 = (h0 & ~mask) | (g0 & mask);
+      h1 = (h1 & ~mask) | (g1 & mask);
+      h2 = (h2 & ~mask) | (g2 & mask);
+      h3 = (h3 & ~mask) | (g3 & mask);
+      h4 = (h4 & ~mask) | (g4 & mask);
+
+      long f = ((h0 | (h1 << 26)) & 0xffffffffL) + (loadLittleEndian(key, 16) & 0xffffffffL);
+      tag0 = (int) f;
+      f = (((h1 >>> 6) | (h2 << 20)) & 0xffffffffL) + (loadLittleEndian(key, 20) & 0xffffffffL) + (f >>> 32);
+      tag1 = (int) f;
+      f = (((h2 >>> 12) | (h3 << 14)) & 0xffffffffL) + (loadLittleEndian(key, 24) & 0xffffffffL) + (f >>> 32);
+      tag2 = (int) f;
+      f = (((h3 >>> 18) | (h4 << 8)) & 0xffffffffL) + (loadLittleEndian(key, 28) & 0xffffffffL) + (f >>> 32);
+      tag3 = (int) f;
     }
+  }
 
-    private void complete() {
-      int carry = 0;
-
-      for (int i = 1; i < 10; i++) {
-        h[i] += carry;
-        carry = h[i] >>> 13;
-        h[i] &= 0x1fff;
+  /**
+   * AES-256-GCM through JCE, which HotSpot compiles to AES-NI and carry-less multiplication intrinsics where the CPU
+   * supports them. The same cipher instance is initialised again for every packet. JCE allocates internally on every
+   * initialisation, so unlike the other modes this one is not free of allocations.
+   */
+  @NotThreadSafe
+  public static final class AesGcm {
+    public static final int TAG_LENGTH = 16;
+
+    private final SecretKeySpec keySpec;
+    private final Cipher cipher;
+    private final byte[] iv;
+    private byte[] scratch = new byte[0];
+
+    public AesGcm(byte[] secretKey) {
+      this.keySpec = new SecretKeySpec(secretKey, "AES");
+      this.iv = new byte[12];
+
+      try {
+        this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("AES-GCM is not supported by this JVM.", e);
       }
+    }
 
-      h[0] += (carry * 5);
-      carry = h[0] >>> 13;
-      h[0] &= 0x1fff;
+    /**
+     * @param nonceBytes Nonce, of which the first four bytes are used as the start of the otherwise zero IV
+     * @param additionalData Authenticated data which is not encrypted
+     * @param additionalLength Length of the authenticated data
+     * @param message Array containing the message
+     * @param messageOffset Offset of the message in the array
+     * @param length Length of the message
+     * @param output Array to write the cipher text followed by the tag to
+     * @param outputOffset Offset to write to in the output array
+     */
+    public void process(byte[] nonceBytes, byte[] additionalData, int additionalLength, byte[] message,
+                        int messageOffset, int length, byte[] output, int outputOffset) {
+
+      try {
+        initialise(nonceBytes, additionalData, additionalLength);
+        cipher.doFinal(message, messageOffset, length, output, outputOffset);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("Failed to encrypt packet.", e);
+      }
+    }
 
-      h[1] += carry;
-      carry = h[1] >>> 13;
-      h[1] &= 0x1fff;
+    /**
+     * Encrypts a message in place inside a buffer and writes the tag right after it. Leaves the buffer positioned after
+     * the tag. The message goes through a reused array, as JCE would otherwise copy a direct buffer into a new one.
+     *
+     * @param nonceBytes Nonce, of which the first four bytes are used as the start of the otherwise zero IV
+     * @param additionalData Authenticated data which is not encrypted
+     * @param additionalLength Length of the authenticated data
+     * @param buffer Buffer containing the message
+     * @param offset Absolute index of the message in the buffer
+     * @param length Length of the message
+     */
+    public void process(byte[] nonceBytes, byte[] additionalData, int additionalLength, ByteBuffer buffer,
+                        int offset, int length) {
+
+      if (scratch.length < length + TAG_LENGTH) {
+        scratch = new byte[length + TAG_LENGTH];
+      }
 
-      h[2] += carry;
+      buffer.limit(buffer.capacity());
+      buffer.position(offset);
+      buffer.get(scratch, 0, length);
 
-      g[0] = h[0] + 5;
-      carry = g[0] >>> 13;
-      g[0] &= 0x1fff;
+      try {
+        initialise(nonceBytes, additionalData, additionalLength);
+        int written = cipher.doFinal(scratch, 0, length, scratch, 0);
 
-      for (int i = 1; i < 10; i++) {
-        g[i] = h[i] + carry;
-        carry = g[i] >>> 13;
-        g[i] &= 0x1fff;
+        buffer.position(offset);
+        buffer.put(scratch, 0, written);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("Failed to encrypt packet.", e);
       }
+    }
 
-      g[9] -= (1 << 13);
-      g[9] &= 0xffff;
+    private void initialise(byte[] nonceBytes, byte[] additionalData, int additionalLength)
+        throws GeneralSecurityException {
 
-      int mask = ((g[9] >>> ((2 * 8) - 1)) - 1) & 0xffff;
+      System.arraycopy(nonceBytes, 0, iv, 0, 4);
 
-      for (int i = 0; i < 10; i++) {
-        g[i] &= mask;
-      }
+      cipher.init(Cipher.ENCRYPT_MODE, keySpec, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+      cipher.updateAAD(additionalData, 0, additionalLength);
+    }
+  }
 
-      mask = ~mask;
+  private static int loadLittleEndian(byte[] array, int index) {
+    return array[index] & 0xff | (array[index + 1] & 0xff) << 8 | (array[index + 2] & 0xff) << 16 |
+        (array[index + 3] & 0xff) << 24;
+  }
 
-      for (int i = 0; i < 10; i++) {
-        h[i] = (h[i] & mask) | g[i];
-      }
+  private static int loadLittleEndian(ByteBuffer buffer, boolean bigEndian, int index) {
+    int value = buffer.getInt(index);
+    return bigEndian ? Integer.reverseBytes(value) : value;
+  }
 
-      h[0] = ((h[0]       ) | (h[1] << 13)               ) & 0xffff;
-      h[1] = ((h[1] >>>  3) | (h[2] << 10)               ) & 0xffff;
-      h[2] = ((h[2] >>>  6) | (h[3] <<  7)               ) & 0xffff;
-      h[3] = ((h[3] >>>  9) | (h[4] <<  4)               ) & 0xffff;
-      h[4] = ((h[4] >>> 12) | (h[5] <<  1) | (h[6] << 14)) & 0xffff;
-      h[5] = ((h[6] >>>  2) | (h[7] << 11)               ) & 0xffff;
-      h[6] = ((h[7] >>>  5) | (h[8] <<  8)               ) & 0xffff;
-      h[7] = ((h[8] >>>  8) | (h[9] <<  5)               ) & 0xffff;
-
-      int f = h[0] + pad[0];
-      h[0] = f & 0xffff;
-
-      for (int i = 1; i < 8; i++) {
-        f = h[i] + pad[i] + (f >>> 16);
-        h[i] = f & 0xffff;
-      }
-    }
+  private static void storeLittleEndian(byte[] array, int index, int value) {
+    array[index] = (byte) value;
+    array[index + 1] = (byte) (value >>> 8);
+    array[index + 2] = (byte) (value >>> 16);
+    array[index + 3] = (byte) (value >>> 24);
   }
 }
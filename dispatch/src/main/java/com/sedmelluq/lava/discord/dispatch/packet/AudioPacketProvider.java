@@ -4,6 +4,10 @@ import com.sedmelluq.lava.discord.dispatch.AudioSendSystem;
 import com.sedmelluq.lava.discord.dispatch.AudioSendSystemFactory;
 import com.sedmelluq.lava.discord.dispatch.OpusFrameProvider;
 import com.sedmelluq.lava.discord.dispatch.SocketAddressInfo;
+import com.sedmelluq.lava.discord.dispatch.metrics.LongHistogram;
+import com.sedmelluq.lava.discord.dispatch.metrics.SendMetricsListener;
+import com.sedmelluq.lava.discord.dispatch.metrics.StopReason;
+import com.sedmelluq.lava.discord.dispatch.metrics.StreamMetricsListener;
 import java.awt.TextComponent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +25,18 @@ public class AudioPacketProvider {
   private static final int OPUS_FRAME_SIZE = 960;
   private static final byte[] SILENCE_BYTES = new byte[] {(byte)0xF8, (byte)0xFF, (byte)0xFE};
 
+  /**
+   * Number of missed frames in a row, the first miss and the silence frames sent after it, within which frames must be
+   * available again for the gap to count as an underrun. Longer gaps are a paused, stopped or finished track.
+   */
+  private static final int UNDERRUN_WINDOW = 12;
+
+  /**
+   * Buffer duration for interactive use, such as soundboards or text to speech, where the delay from a change in the
+   * audio to it being heard matters more than riding out hiccups in frame delivery.
+   */
+  public static final int LOW_LATENCY_BUFFER_DURATION = 80;
+
   private final Consumer<Boolean> speakingStateHandler;
   private final AudioSendSystemFactory sendSystemFactory;
   private final AudioPacketBuilder packetBuilder;
@@ -29,6 +45,8 @@ public class AudioPacketProvider {
   private final Object systemLock = new Object();
 
   private volatile OpusFrameProvider frameProvider;
+  private volatile int bufferDuration = 0;
+  private volatile boolean adaptiveBuffer = false;
 
   @GuardedBy("systemLock")
   private AudioSendSystem sendSystem;
@@ -39,11 +57,21 @@ public class AudioPacketProvider {
   @GuardedBy("packetBuilder")
   private int silenceCounter = 0;
   @GuardedBy("packetBuilder")
+  private int missedFrames = -1;
+  @GuardedBy("packetBuilder")
+  private long underrunCount;
+  @GuardedBy("packetBuilder")
   private boolean sentSilenceOnConnect;
   @GuardedBy("packetBuilder")
   private char sequenceNumber = 0;
   @GuardedBy("packetBuilder")
   private int timestamp = 0;
+  @GuardedBy("packetBuilder")
+  private SendMetricsListener metricsListener = SendMetricsListener.NONE;
+  @GuardedBy("packetBuilder")
+  private long metricsStreamId;
+  @GuardedBy("packetBuilder")
+  private StreamMetricsListener streamMetrics = StreamMetricsListener.NONE;
 
   public AudioPacketProvider(AudioSendSystemFactory sendSystemFactory, InetSocketAddress address, byte[] secretKey,
                              int sourceIdentifier, AudioPacketBuilder.NonceStrategy nonceStrategy,
@@ -63,6 +91,68 @@ public class AudioPacketProvider {
     return addressInfo;
   }
 
+  /**
+   * @return Requested buffer duration in milliseconds, zero for the default of the send system
+   */
+  public int getBufferDuration() {
+    return bufferDuration;
+  }
+
+  /**
+   * @return True if the send system should grow the buffer after frames were missed and shrink it back once delivery
+   *         is stable again
+   */
+  public boolean isAdaptiveBuffer() {
+    return adaptiveBuffer;
+  }
+
+  /**
+   * @return Number of times the frame provider had no frame while this stream was speaking, and had frames again
+   *         within a few frames. Gaps after which no frame follows, or only much later, are not counted.
+   */
+  public long getUnderrunCount() {
+    synchronized (packetBuilder) {
+      return underrunCount;
+    }
+  }
+
+  /**
+   * Sets how much audio the send system keeps queued for this stream. Send systems may cap it at their own buffer
+   * duration.
+   *
+   * @param bufferDuration Buffer duration in milliseconds, zero for the default of the send system
+   * @param adaptive Whether to grow the buffer after frames were missed and shrink it back once delivery is stable
+   */
+  public void setBufferDuration(int bufferDuration, boolean adaptive) {
+    this.bufferDuration = bufferDuration;
+    this.adaptiveBuffer = adaptive;
+  }
+
+  /**
+   * Called by the send system to report the events of building packets for this stream.
+   *
+   * @param metricsListener Listener to report to
+   * @param streamId Identifier of this stream in the events
+   */
+  public void setMetricsListener(SendMetricsListener metricsListener, long streamId) {
+    synchronized (packetBuilder) {
+      this.metricsListener = metricsListener;
+      this.metricsStreamId = streamId;
+    }
+  }
+
+  /**
+   * Called by the send system with the listener it got when adding this stream, and with
+   * {@link StreamMetricsListener#NONE} when removing it.
+   *
+   * @param streamMetrics Listener for the events of only this stream
+   */
+  public void setStreamMetrics(StreamMetricsListener streamMetrics) {
+    synchronized (packetBuilder) {
+      this.streamMetrics = streamMetrics;
+    }
+  }
+
   public void setFrameProvider(OpusFrameProvider newFrameProvider) {
     synchronized (systemLock) {
       if (!shutdown) {
@@ -89,6 +179,28 @@ public class AudioPacketProvider {
     }
   }
 
+  /**
+   * Drops the audio queued by the send system and immediately refills it from the current frame provider. Sequence and
+   * encryption state are kept, so the stream continues without reconnecting. Useful right after a seek or a track
+   * switch.
+   */
+  public void flush() {
+    synchronized (systemLock) {
+      if (sendSystem != null) {
+        sendSystem.flush();
+      }
+    }
+  }
+
+  /**
+   * @see AudioSendSystem#getFrameLatency()
+   */
+  public LongHistogram getFrameLatency() {
+    synchronized (systemLock) {
+      return sendSystem != null ? sendSystem.getFrameLatency() : null;
+    }
+  }
+
   public void shutdown() {
     synchronized (systemLock) {
       try {
@@ -103,46 +215,171 @@ public class AudioPacketProvider {
 
   public boolean providePacket(ByteBuffer buffer, boolean realTime) {
     synchronized (packetBuilder) {
-      boolean packetReady = false;
+      int packetOffset = buffer.position();
+      long provideStart = startProvide();
 
       try {
-        if (sentSilenceOnConnect && frameProvider != null &&
-            frameProvider.provideOpusFrame(packetBuilder.getPayloadBuffer())) {
+        if (preparePayload(buffer, packetOffset, realTime)) {
+          sequenceNumber++;
+          timestamp += OPUS_FRAME_SIZE;
 
-          silenceCounter = -1;
+          long encryptionStart = startTiming();
+          packetBuilder.writeEncrypted(buffer, packetOffset, sequenceNumber, timestamp);
+          reportEncryption(1, encryptionStart);
+          reportProvided(provideStart, 1, StopReason.COMPLETE);
+          return true;
+        }
 
-          packetReady = true;
+        reportProvided(provideStart, 0, StopReason.PROVIDER_EMPTY);
+      } catch (Exception e) {
+        log.error("Providing a packet failed.", e);
+        reportProvided(provideStart, 0, StopReason.EXCEPTION);
+      }
+    }
 
-          if (!speaking) {
-            setSpeaking(true);
-          }
-        } else if (silenceCounter > -1) {
-          packetBuilder.getPayloadBuffer().put(SILENCE_BYTES);
-          packetReady = true;
+    return false;
+  }
+
+  /**
+   * Provides multiple packets in one call, one packet per buffer. The payloads of all packets are fetched first and
+   * then encrypted together.
+   *
+   * @param packetBuffers Buffers to write the packets to. Each buffer is cleared and receives one packet starting from
+   *                      index zero, and is left positioned at the end of the packet.
+   * @param maxPackets Maximum number of packets to provide
+   * @param realTime Whether the packets are needed right away, used to detect when speaking has stopped
+   * @return The number of packets provided
+   */
+  public int providePackets(ByteBuffer[] packetBuffers, int maxPackets, boolean realTime) {
+    synchronized (packetBuilder) {
+      long provideStart = startProvide();
+      StopReason reason = StopReason.COMPLETE;
+      int count = 0;
 
-          if (++silenceCounter > 10) {
-            silenceCounter = -1;
-            sentSilenceOnConnect = true;
+      try {
+        while (count < maxPackets) {
+          ByteBuffer buffer = packetBuffers[count];
+          buffer.clear();
+
+          if (!preparePayload(buffer, 0, realTime)) {
+            reason = StopReason.PROVIDER_EMPTY;
+            break;
           }
-        } else if (speaking && realTime) {
-          setSpeaking(false);
+
+          count++;
         }
+      } catch (Exception e) {
+        log.error("Providing a packet failed.", e);
+        reason = StopReason.EXCEPTION;
+      }
 
-        if (packetReady) {
-          sequenceNumber++;
-          timestamp += OPUS_FRAME_SIZE;
+      if (count > 0) {
+        try {
+          long encryptionStart = startTiming();
+          packetBuilder.writeEncrypted(packetBuffers, count, (char) (sequenceNumber + 1),
+              timestamp + OPUS_FRAME_SIZE, OPUS_FRAME_SIZE);
+          reportEncryption(count, encryptionStart);
 
-          packetBuilder.writeEncrypted(buffer, sequenceNumber, timestamp);
-          return true;
+          sequenceNumber += count;
+          timestamp += count * OPUS_FRAME_SIZE;
+        } catch (Exception e) {
+          log.error("Encrypting a batch of packets failed.", e);
+          reason = StopReason.EXCEPTION;
+          count = 0;
         }
+      }
+
+      reportProvided(provideStart, count, reason);
+      return count;
+    }
+  }
+
+  /**
+   * Computes the keystreams for the next packets ahead of time, so that less work is left for when they are provided.
+   * Meant to be called from a background task between queue refills.
+   *
+   * @param count Number of upcoming packets to precompute
+   */
+  public void precomputeKeystreams(int count) {
+    synchronized (packetBuilder) {
+      try {
+        packetBuilder.precomputeKeystreams(count, (char) (sequenceNumber + 1), timestamp + OPUS_FRAME_SIZE,
+            OPUS_FRAME_SIZE);
       } catch (Exception e) {
-        log.error("Providing a packet failed.", e);
+        log.error("Precomputing keystreams failed.", e);
       }
     }
+  }
+
+  private boolean preparePayload(ByteBuffer buffer, int packetOffset, boolean realTime) {
+    OpusFrameProvider provider = sentSilenceOnConnect ? frameProvider : null;
+
+    if (provider != null && provider.provideOpusFrame(packetBuilder.getPayloadBuffer(buffer, packetOffset))) {
+      silenceCounter = -1;
+
+      if (missedFrames > 0) {
+        underrunCount++;
+      }
+
+      missedFrames = 0;
+
+      if (!speaking) {
+        setSpeaking(true);
+      }
+
+      return true;
+    }
+
+    if (provider != null) {
+      metricsListener.onProviderMiss(metricsStreamId);
+      streamMetrics.onProviderMiss();
+
+      if (missedFrames != -1 && ++missedFrames > UNDERRUN_WINDOW) {
+        missedFrames = -1;
+      }
+    }
+
+    if (silenceCounter > -1) {
+      packetBuilder.getPayloadBuffer(buffer, packetOffset).put(SILENCE_BYTES);
+      metricsListener.onSilenceFrame(metricsStreamId);
+      streamMetrics.onSilenceFrame();
+
+      if (++silenceCounter > 10) {
+        silenceCounter = -1;
+        sentSilenceOnConnect = true;
+      }
+
+      return true;
+    } else if (speaking && realTime) {
+      setSpeaking(false);
+    }
 
     return false;
   }
 
+  private long startProvide() {
+    streamMetrics.onProvideStarted();
+    return startTiming();
+  }
+
+  private long startTiming() {
+    return metricsListener != SendMetricsListener.NONE ? System.nanoTime() : 0;
+  }
+
+  private void reportEncryption(int packetCount, long encryptionStart) {
+    if (metricsListener != SendMetricsListener.NONE) {
+      metricsListener.onEncryption(metricsStreamId, packetCount, System.nanoTime() - encryptionStart);
+    }
+  }
+
+  private void reportProvided(long provideStart, int packetCount, StopReason reason) {
+    if (metricsListener != SendMetricsListener.NONE) {
+      long duration = System.nanoTime() - provideStart;
+      metricsListener.onPacketsProvided(metricsStreamId, duration, packetCount, reason);
+      streamMetrics.onPacketsProvided(duration, packetCount, reason);
+    }
+  }
+
   private void closeFrameProvider(OpusFrameProvider provider) {
     try {
       if (provider != null) {
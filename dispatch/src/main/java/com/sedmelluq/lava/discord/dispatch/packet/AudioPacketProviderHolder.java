@@ -2,6 +2,7 @@ package com.sedmelluq.lava.discord.dispatch.packet;
 
 import com.sedmelluq.lava.discord.dispatch.AudioSendSystemFactory;
 import com.sedmelluq.lava.discord.dispatch.OpusFrameProvider;
+import com.sedmelluq.lava.discord.dispatch.metrics.LongHistogram;
 import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketBuilder.NonceStrategy;
 
 import java.net.InetSocketAddress;
@@ -16,6 +17,8 @@ public class AudioPacketProviderHolder {
   private final AtomicReference<AudioPacketProvider> packetProvider;
   private final boolean requireExplicitSocketHandle;
   private volatile ConnectionDetailsBuilder connectionDetailsBuilder;
+  private volatile int bufferDuration = 0;
+  private volatile boolean adaptiveBuffer = false;
 
   public AudioPacketProviderHolder(Consumer<Boolean> speakingStateHandler,
                                    Supplier<OpusFrameProvider> frameProviderSupplier,
@@ -54,6 +57,37 @@ public class AudioPacketProviderHolder {
         .withExplicitSocketHandle(explicitSocketHandle));
   }
 
+  /**
+   * @see AudioPacketProvider#flush()
+   */
+  public void flush() {
+    AudioPacketProvider provider = packetProvider.get();
+    if (provider != null) {
+      provider.flush();
+    }
+  }
+
+  /**
+   * @see AudioPacketProvider#setBufferDuration(int, boolean)
+   */
+  public void setBufferDuration(int bufferDuration, boolean adaptive) {
+    this.bufferDuration = bufferDuration;
+    this.adaptiveBuffer = adaptive;
+
+    AudioPacketProvider provider = packetProvider.get();
+    if (provider != null) {
+      provider.setBufferDuration(bufferDuration, adaptive);
+    }
+  }
+
+  /**
+   * @see AudioPacketProvider#getFrameLatency()
+   */
+  public LongHistogram getFrameLatency() {
+    AudioPacketProvider provider = packetProvider.get();
+    return provider != null ? provider.getFrameLatency() : null;
+  }
+
   public void shutdown() {
     AudioPacketProvider provider = packetProvider.getAndSet(null);
 
@@ -76,6 +110,8 @@ public class AudioPacketProviderHolder {
           newDetails.explicitSocketHandle
       );
 
+      newProvider.setBufferDuration(bufferDuration, adaptiveBuffer);
+
       AudioPacketProvider oldProvider = packetProvider.getAndSet(newProvider);
       newProvider.setFrameProvider(frameProviderSupplier.get());
       newProvider.initialize();
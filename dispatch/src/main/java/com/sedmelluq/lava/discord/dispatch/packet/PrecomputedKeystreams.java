@@ -0,0 +1,70 @@
+package com.sedmelluq.lava.discord.dispatch.packet;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+
+/**
+ * Ring of keystreams computed ahead of time for the nonces of the next packets. Entries are consumed in order and only
+ * when their nonce matches the one actually used for a packet, otherwise the whole ring is discarded.
+ */
+@NotThreadSafe
+class PrecomputedKeystreams {
+  private final byte[][] nonces;
+  private final int[][] keystreams;
+  private int head;
+  private int size;
+
+  /**
+   * @param capacity Maximum number of precomputed packets
+   * @param blocks Number of keystream blocks to precompute per packet
+   */
+  PrecomputedKeystreams(int capacity, int blocks) {
+    this.nonces = new byte[capacity][24];
+    this.keystreams = new int[capacity][8 + blocks * 16];
+  }
+
+  int capacity() {
+    return keystreams.length;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return Nonce array of the first free entry, to be filled in before calling {@link #push()}.
+   */
+  byte[] tailNonce() {
+    return nonces[(head + size) % nonces.length];
+  }
+
+  /**
+   * @return Keystream array of the first free entry, to be filled in before calling {@link #push()}.
+   */
+  int[] tailKeystream() {
+    return keystreams[(head + size) % keystreams.length];
+  }
+
+  void push() {
+    size++;
+  }
+
+  /**
+   * @param nonce Nonce that is about to be used
+   * @return Keystream for this nonce if it is the next one in the ring, otherwise null. The returned array is only
+   *         valid until the next call to {@link #push()}.
+   */
+  int[] take(byte[] nonce) {
+    if (size == 0) {
+      return null;
+    } else if (!Arrays.equals(nonces[head], nonce)) {
+      size = 0;
+      return null;
+    }
+
+    int[] keystream = keystreams[head];
+    head = (head + 1) % keystreams.length;
+    size--;
+    return keystream;
+  }
+}
@@ -0,0 +1,56 @@
+package com.sedmelluq.lava.discord.dispatch.queue;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Number of packets a stream with an adaptive buffer keeps queued on top of its buffer duration. Grows every time the
+ * frame provider of the stream stalled briefly while it was speaking, as the listener heard silence in place of the
+ * frames which were late. Shrinks by one packet after each period without a stall.
+ */
+@NotThreadSafe
+class AdaptiveBuffer {
+  static final int GROW_PACKETS = 2;
+  static final long STABLE_PERIOD = TimeUnit.SECONDS.toNanos(10);
+
+  private int extraPackets;
+  private long lastChange;
+  private long lastUnderrunCount;
+
+  /**
+   * @return Number of packets to queue on top of the buffer duration
+   */
+  int getExtraPackets() {
+    return extraPackets;
+  }
+
+  /**
+   * Called after each refill of the queue of the stream.
+   *
+   * @param now System nano time of the refill
+   * @param underrunCount Underrun count of the packet provider of the stream after the refill
+   * @param capacity Capacity of the queue, the limit for the extra packets
+   */
+  void update(long now, long underrunCount, int capacity) {
+    if (underrunCount != lastUnderrunCount) {
+      extraPackets = Math.min(capacity, extraPackets + GROW_PACKETS);
+      lastChange = now;
+    } else if (extraPackets > 0 && now - lastChange >= STABLE_PERIOD) {
+      extraPackets--;
+      lastChange = now;
+    }
+
+    lastUnderrunCount = underrunCount;
+  }
+
+  /**
+   * Drops the extra packets, for when the buffer of the stream is not adaptive.
+   *
+   * @param underrunCount Current underrun count of the packet provider of the stream, so that earlier stalls are not
+   *                      counted once the buffer is adaptive again
+   */
+  void reset(long underrunCount) {
+    extraPackets = 0;
+    lastUnderrunCount = underrunCount;
+  }
+}
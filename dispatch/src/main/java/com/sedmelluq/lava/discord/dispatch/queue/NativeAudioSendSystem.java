@@ -2,17 +2,40 @@ package com.sedmelluq.lava.discord.dispatch.queue;
 
 import com.sedmelluq.lava.discord.dispatch.AudioSendSystem;
 import com.sedmelluq.lava.discord.dispatch.SocketAddressInfo;
+import com.sedmelluq.lava.discord.dispatch.metrics.FrameLatencyTracer;
+import com.sedmelluq.lava.discord.dispatch.metrics.LongHistogram;
+import com.sedmelluq.lava.discord.dispatch.metrics.SendMetricsListener;
+import com.sedmelluq.lava.discord.dispatch.metrics.StopReason;
+import com.sedmelluq.lava.discord.dispatch.metrics.StreamMetricsListener;
 import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketProvider;
 
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static com.sedmelluq.lava.discord.dispatch.queue.NativeAudioSendSystemFactory.PACKET_INTERVAL;
 
 @ThreadSafe
 public class NativeAudioSendSystem implements AudioSendSystem {
   private final long queueKey;
   private final NativeAudioSendSystemFactory audioSendSystem;
   private final AudioPacketProvider packetProvider;
-  private final ByteBuffer directBuffer;
+  private final SocketAddressInfo destination;
+  private final Object populateLock = new Object();
+  private final FrameLatencyTracer latencyTracer;
+  private volatile long nextRefillTime;
+  private volatile int flushGeneration;
+  private volatile StreamMetricsListener streamMetrics = StreamMetricsListener.NONE;
+  @GuardedBy("populateLock")
+  private final AdaptiveBuffer adaptiveBuffer = new AdaptiveBuffer();
+  @GuardedBy("populateLock")
+  private ByteBuffer[] pendingPackets = new ByteBuffer[0];
+  @GuardedBy("populateLock")
+  private int pendingCount;
+  @GuardedBy("populateLock")
+  private long pendingBuildTime;
 
   public NativeAudioSendSystem(long queueKey, NativeAudioSendSystemFactory audioSendSystem,
                                AudioPacketProvider packetProvider) {
@@ -20,7 +43,51 @@ public class NativeAudioSendSystem implements AudioSendSystem {
     this.queueKey = queueKey;
     this.audioSendSystem = audioSendSystem;
     this.packetProvider = packetProvider;
-    this.directBuffer = ByteBuffer.allocateDirect(1024);
+    this.destination = packetProvider.getAddressInfo();
+    this.nextRefillTime = System.nanoTime();
+
+    if (destination == null) {
+      throw new IllegalArgumentException("Packet provider has no destination address.");
+    }
+
+    int sampleInterval = audioSendSystem.getLatencySampleInterval();
+    this.latencyTracer = sampleInterval > 0 ? new FrameLatencyTracer(queueKey, sampleInterval,
+        TimeUnit.MILLISECONDS.toNanos(PACKET_INTERVAL), audioSendSystem.getMetricsListener()) : null;
+  }
+
+  long getQueueKey() {
+    return queueKey;
+  }
+
+  /**
+   * Set by the populator of the partition of this stream, reset when the queue is flushed.
+   *
+   * @return System nano time at which the queue of this stream is expected to reach its low watermark
+   */
+  long getNextRefillTime() {
+    return nextRefillTime;
+  }
+
+  void setNextRefillTime(long nextRefillTime) {
+    this.nextRefillTime = nextRefillTime;
+  }
+
+  /**
+   * Incremented under the populate lock by every flush. A populator reads it before taking its capacity snapshot, a
+   * different value when it populates means that the snapshot may be from before the flush refilled the queue.
+   *
+   * @return Number of times the queue of this stream has been flushed
+   */
+  int getFlushGeneration() {
+    return flushGeneration;
+  }
+
+  /**
+   * @param streamMetrics Listener for the events of only this stream, from the metrics listener of the factory
+   */
+  void setStreamMetrics(StreamMetricsListener streamMetrics) {
+    this.streamMetrics = streamMetrics;
+    packetProvider.setStreamMetrics(streamMetrics);
   }
 
   @Override
@@ -33,26 +100,221 @@ public class NativeAudioSendSystem implements AudioSendSystem {
     audioSendSystem.removeInstance(this);
   }
 
-  public void populateQueue(UdpQueueManager queueManager) {
-    int remaining = queueManager.getRemainingCapacity(queueKey);
-    boolean emptyQueue = queueManager.getCapacity() - remaining > 0;
+  @Override
+  public void flush() {
+    audioSendSystem.flushInstance(this);
+  }
+
+  @Override
+  public LongHistogram getFrameLatency() {
+    return latencyTracer != null ? latencyTracer.getLatency() : null;
+  }
+
+  /**
+   * Fills the queue of this stream with as many packets as it has room for, in batches.
+   *
+   * @param queueManager Queue manager to add the packets to
+   * @param packetBuffers Direct buffers to build the packets of one batch in, their count limits the batch size
+   */
+  public void populateQueue(PacketQueueSink queueManager, ByteBuffer[] packetBuffers) {
+    populateQueue(queueManager, queueManager.getRemainingCapacity(queueKey), packetBuffers);
+  }
+
+  /**
+   * Fills the queue of this stream up to its buffer duration, in batches. The buffer duration of the stream is taken
+   * from its packet provider, capped at the capacity of the queue manager.
+   *
+   * @param queueManager Queue manager to add the packets to
+   * @param remaining Remaining capacity of the queue of this stream, from a snapshot taken by the caller
+   * @param packetBuffers Direct buffers to build the packets of one batch in, their count limits the batch size
+   * @return Number of packets added to the queue
+   */
+  public int populateQueue(PacketQueueSink queueManager, int remaining, ByteBuffer[] packetBuffers) {
+    synchronized (populateLock) {
+      return populateQueueLocked(queueManager, remaining, Integer.MAX_VALUE, packetBuffers);
+    }
+  }
+
+  /**
+   * Same as {@link #populateQueue(PacketQueueSink, int, ByteBuffer[])}, but adds at most the specified number of
+   * packets, and reads the remaining capacity again if the queue was flushed since the snapshot was taken.
+   *
+   * @param maximumPackets Maximum number of packets to add
+   * @param generation Flush generation of this stream, read before the capacity snapshot was taken
+   */
+  int populateQueue(PacketQueueSink queueManager, int remaining, int maximumPackets, int generation,
+                    ByteBuffer[] packetBuffers) {
+
+    synchronized (populateLock) {
+      if (generation != flushGeneration) {
+        remaining = queueManager.getRemainingCapacity(queueKey);
+      }
 
-    SocketAddressInfo addressInfo = packetProvider.getAddressInfo();
+      return populateQueueLocked(queueManager, remaining, maximumPackets, packetBuffers);
+    }
+  }
 
-    for (int i = 0; i < remaining; i++) {
-      directBuffer.clear();
+  /**
+   * Drops the packets in the queue of this stream and immediately fills it again.
+   *
+   * @param queueManager Queue manager of this stream
+   * @param packetBuffers Direct buffers to build the packets of one batch in, their count limits the batch size
+   */
+  public void flushQueue(PacketQueueSink queueManager, ByteBuffer[] packetBuffers) {
+    synchronized (populateLock) {
+      queueManager.flushQueue(queueKey);
+      flushGeneration++;
+      pendingCount = 0;
 
-      if (packetProvider.providePacket(directBuffer, emptyQueue)) {
-        directBuffer.flip();
+      if (latencyTracer != null) {
+        latencyTracer.onQueueDropped();
+      }
+
+      populateQueueLocked(queueManager, queueManager.getCapacity(), Integer.MAX_VALUE, packetBuffers);
+      nextRefillTime = System.nanoTime();
+    }
+  }
+
+  private int populateQueueLocked(PacketQueueSink queueManager, int remaining, int maximumPackets,
+                                  ByteBuffer[] packetBuffers) {
+
+    int capacity = queueManager.getCapacity();
+    int queued = capacity - remaining;
+    int total = 0;
+    boolean emptyQueue = queued > 0;
+    SendMetricsListener metricsListener = audioSendSystem.getMetricsListener();
+    StreamMetricsListener streamMetrics = this.streamMetrics;
+    boolean timed = metricsListener != SendMetricsListener.NONE;
+    long populateStart = timed ? System.nanoTime() : 0;
+    streamMetrics.onPopulateStarted();
+    StopReason reason = StopReason.COMPLETE;
+
+    metricsListener.onRefill(queueKey, queued);
+    streamMetrics.onRefill(queued);
+
+    if (latencyTracer != null && latencyTracer.hasPending()) {
+      latencyTracer.onQueueDepth(System.nanoTime(), queued);
+    }
 
-        if (queueManager.queuePacket(queueKey, addressInfo.hostAddress, addressInfo.port, directBuffer,
-            addressInfo.explicitSourceSocketHandle)) {
-          continue;
+    remaining = Math.min(Math.min(remaining, maximumPackets), getTargetPackets(capacity) - queued);
+
+    try {
+      if (pendingCount > 0) {
+        int added = queuePending(queueManager);
+        total += added;
+        remaining -= added;
+
+        if (pendingCount > 0) {
+          metricsListener.onQueueFull(queueKey);
+          streamMetrics.onQueueFull();
+          reason = StopReason.QUEUE_FULL;
+          remaining = 0;
         }
       }
 
-      break;
+      while (remaining > 0) {
+        int batchSize = Math.min(remaining, packetBuffers.length);
+        long buildTime = latencyTracer != null && latencyTracer.isSampled(batchSize) ? System.nanoTime() : 0;
+        int provided = packetProvider.providePackets(packetBuffers, batchSize, emptyQueue);
+
+        for (int i = 0; i < provided; i++) {
+          packetBuffers[i].flip();
+        }
+
+        int added = queueManager.queuePackets(queueKey, destination, packetBuffers, provided);
+        total += added;
+
+        if (latencyTracer != null) {
+          latencyTracer.onQueued(buildTime, added);
+        }
+
+        if (added < provided) {
+          // The provider has already moved past these packets, so they are kept for the next cycle.
+          keepPending(packetBuffers, added, provided, buildTime);
+          metricsListener.onQueueFull(queueKey);
+          streamMetrics.onQueueFull();
+          reason = StopReason.QUEUE_FULL;
+          break;
+        } else if (added < batchSize) {
+          reason = StopReason.PROVIDER_EMPTY;
+          break;
+        }
+
+        remaining -= added;
+      }
+    } catch (RuntimeException e) {
+      reason = StopReason.EXCEPTION;
+      throw e;
+    } finally {
+      if (total > 0) {
+        metricsListener.onPacketsQueued(queueKey, total);
+        streamMetrics.onPacketsQueued(total);
+      }
+
+      if (timed) {
+        long duration = System.nanoTime() - populateStart;
+        metricsListener.onStreamPopulated(queueKey, duration, queued, total, reason);
+        streamMetrics.onStreamPopulated(duration, queued, total, reason);
+      }
     }
+
+    if (packetProvider.isAdaptiveBuffer()) {
+      adaptiveBuffer.update(System.nanoTime(), packetProvider.getUnderrunCount(), capacity);
+    } else {
+      adaptiveBuffer.reset(packetProvider.getUnderrunCount());
+    }
+
+    return total;
+  }
+
+  private int queuePending(PacketQueueSink queueManager) {
+    int added = queueManager.queuePackets(queueKey, destination, pendingPackets, pendingCount);
+
+    if (latencyTracer != null) {
+      latencyTracer.onQueued(pendingBuildTime, added);
+    }
+
+    // Packets of the batch are in order, so the ones which did not fit move to the front.
+    for (int i = added; i < pendingCount; i++) {
+      ByteBuffer packet = pendingPackets[i - added];
+      pendingPackets[i - added] = pendingPackets[i];
+      pendingPackets[i] = packet;
+    }
+
+    pendingCount -= added;
+    return added;
+  }
+
+  private void keepPending(ByteBuffer[] packetBuffers, int from, int to, long buildTime) {
+    if (pendingPackets.length < to - from) {
+      int start = pendingPackets.length;
+      pendingPackets = Arrays.copyOf(pendingPackets, to - from);
+
+      for (int i = start; i < pendingPackets.length; i++) {
+        pendingPackets[i] = ByteBuffer.allocateDirect(packetBuffers[from].capacity());
+      }
+    }
+
+    for (int i = from; i < to; i++) {
+      ByteBuffer packet = pendingPackets[i - from];
+      packet.clear();
+      packet.put(packetBuffers[i]);
+      packet.flip();
+    }
+
+    pendingCount = to - from;
+    pendingBuildTime = buildTime;
+  }
+
+  private int getTargetPackets(int capacity) {
+    int bufferDuration = packetProvider.getBufferDuration();
+    int packets = bufferDuration > 0 ? Math.max(1, bufferDuration / PACKET_INTERVAL) : capacity;
+
+    return Math.min(capacity, packets + adaptiveBuffer.getExtraPackets());
+  }
+
+  public void precomputeKeystreams(int count) {
+    packetProvider.precomputeKeystreams(count);
   }
 
   public void deleteQueue(UdpQueueManager queueManager) {
@@ -4,9 +4,12 @@ import com.sedmelluq.lava.common.tools.DaemonThreadFactory;
 import com.sedmelluq.lava.common.tools.ExecutorTools;
 import com.sedmelluq.lava.discord.dispatch.AudioSendSystem;
 import com.sedmelluq.lava.discord.dispatch.AudioSendSystemFactory;
+import com.sedmelluq.lava.discord.dispatch.metrics.SendMetricsListener;
+import com.sedmelluq.lava.discord.dispatch.metrics.StreamMetricsListener;
 import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketProvider;
 
 import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentHashMap.KeySetView;
 import java.util.concurrent.ScheduledExecutorService;
@@ -17,14 +20,27 @@ import java.util.concurrent.atomic.AtomicLong;
 @ThreadSafe
 public class NativeAudioSendSystemFactory implements AudioSendSystemFactory, AutoCloseable {
   private static final int DEFAULT_BUFFER_DURATION = 400;
-  private static final int PACKET_INTERVAL = 20;
+  static final int PACKET_INTERVAL = 20;
+  private static final int PACKET_BATCH_SIZE = 20;
+  private static final int PACKET_BUFFER_SIZE = 1024;
+  private static final int POPULATE_INTERVAL = 40;
+  private static final int WATERMARK_CHECK_INTERVAL = 10;
 
   private final int bufferDuration;
   private final SocketHandles socketHandles;
+  private final int keystreamPrecomputeCount;
+  private final int shardCount;
+  private final int lowWatermark;
+  private final int cycleBudget;
+  private final SendMetricsListener metricsListener;
+  private final int latencySampleInterval;
+  private final SendThreadInitializer sendThreadInitializer;
+  private final QueuePopulator[] populators;
+  private final ByteBuffer[] flushBuffers;
   private final AtomicLong identifierCounter = new AtomicLong();
   private final KeySetView<NativeAudioSendSystem, Boolean> systems = ConcurrentHashMap.newKeySet();
   private final Object lock = new Object();
-  private volatile UdpQueueManager queueManager;
+  private volatile UdpQueueManager[] queueManagers;
   private boolean closed = false;
   private ScheduledExecutorService scheduler;
 
@@ -37,41 +53,108 @@ public class NativeAudioSendSystemFactory implements AudioSendSystemFactory, Aut
   }
 
   public NativeAudioSendSystemFactory(int bufferDuration, SocketHandles socketHandles) {
-    this.bufferDuration = bufferDuration;
-    this.socketHandles = socketHandles;
+    this(new Builder().bufferDuration(bufferDuration).socketHandles(socketHandles));
+  }
+
+  private NativeAudioSendSystemFactory(Builder builder) {
+    this.bufferDuration = builder.bufferDuration;
+    this.socketHandles = builder.socketHandles;
+    this.keystreamPrecomputeCount = builder.keystreamPrecomputeCount;
+    this.shardCount = builder.shardCount;
+    this.sendThreadInitializer = builder.sendThreadInitializer;
+    this.lowWatermark = builder.lowWatermark;
+    this.cycleBudget = builder.cycleBudget;
+    this.metricsListener = builder.metricsListener;
+    this.latencySampleInterval = builder.latencySampleInterval;
+    this.populators = new QueuePopulator[builder.populatorThreads];
+
+    for (int i = 0; i < populators.length; i++) {
+      populators[i] = new QueuePopulator(i, populators.length, PACKET_BATCH_SIZE, PACKET_BUFFER_SIZE, lowWatermark,
+          TimeUnit.MILLISECONDS.toNanos(PACKET_INTERVAL), TimeUnit.MILLISECONDS.toNanos(POPULATE_INTERVAL),
+          TimeUnit.MILLISECONDS.toNanos(cycleBudget), POPULATE_INTERVAL / PACKET_INTERVAL + 1);
+    }
+
+    this.flushBuffers = new ByteBuffer[PACKET_BATCH_SIZE];
+
+    for (int i = 0; i < flushBuffers.length; i++) {
+      flushBuffers[i] = ByteBuffer.allocateDirect(PACKET_BUFFER_SIZE);
+    }
   }
 
   private void initialiseQueueManager() {
-    scheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("native-udp"));
-    queueManager = new UdpQueueManager(bufferDuration / PACKET_INTERVAL,
-        TimeUnit.MILLISECONDS.toNanos(PACKET_INTERVAL));
+    scheduler = new ScheduledThreadPoolExecutor(populators.length, new DaemonThreadFactory("native-udp"));
 
-    scheduler.scheduleWithFixedDelay(this::populateQueues, 0, 40, TimeUnit.MILLISECONDS);
+    UdpQueueManager[] managers = new UdpQueueManager[shardCount];
 
+    for (int i = 0; i < shardCount; i++) {
+      managers[i] = new UdpQueueManager(bufferDuration / PACKET_INTERVAL,
+          TimeUnit.MILLISECONDS.toNanos(PACKET_INTERVAL));
+    }
+
+    queueManagers = managers;
+
+    // Each partition runs on its own schedule, so that a slow partition only delays its own next cycle. The task of a
+    // partition ticks twice per populate interval, keystreams are precomputed on the ticks between two populate cycles.
+    int populateInterval = getPopulateInterval();
+
+    for (QueuePopulator populator : populators) {
+      scheduler.scheduleWithFixedDelay(new PartitionTask(populator, populateInterval), 0,
+          TimeUnit.MILLISECONDS.toMicros(populateInterval) / 2, TimeUnit.MICROSECONDS);
+    }
+
+    for (int i = 0; i < shardCount; i++) {
+      startSendThread(managers[i], i);
+    }
+  }
+
+  private void startSendThread(UdpQueueManager manager, int shardIndex) {
     Thread thread = new Thread(() -> {
+      if (sendThreadInitializer != null) {
+        sendThreadInitializer.initialise(shardIndex);
+      }
+
       if (socketHandles != null) {
-        queueManager.processWithSocket(socketHandles.ipv4SocketHandle, socketHandles.ipv6SocketHandle);
+        manager.processWithSocket(socketHandles.ipv4SocketHandle, socketHandles.ipv6SocketHandle);
       } else {
-        queueManager.process();
+        manager.process();
       }
-    });
+    }, "native-udp-send-" + shardIndex);
+
     thread.setPriority((Thread.NORM_PRIORITY + Thread.MAX_PRIORITY) / 2);
     thread.setDaemon(true);
     thread.start();
   }
 
   private ScheduledExecutorService shutdownQueueManager() {
-    queueManager.close();
-    queueManager = null;
+    for (UdpQueueManager manager : queueManagers) {
+      manager.close();
+    }
+
+    queueManagers = null;
 
     ScheduledExecutorService currentScheduler = scheduler;
     scheduler = null;
     return currentScheduler;
   }
 
+  private int getPopulateInterval() {
+    // With a low watermark, only the streams due for a refill are populated, so they can be checked more often.
+    return lowWatermark > 0 ? WATERMARK_CHECK_INTERVAL : POPULATE_INTERVAL;
+  }
+
   @Override
   public AudioSendSystem create(AudioPacketProvider packetProvider) {
-    return new NativeAudioSendSystem(identifierCounter.incrementAndGet(), this, packetProvider);
+    long queueKey = identifierCounter.incrementAndGet();
+    packetProvider.setMetricsListener(metricsListener, queueKey);
+    return new NativeAudioSendSystem(queueKey, this, packetProvider);
+  }
+
+  SendMetricsListener getMetricsListener() {
+    return metricsListener;
+  }
+
+  int getLatencySampleInterval() {
+    return latencySampleInterval;
   }
 
   @Override
@@ -82,7 +165,7 @@ public class NativeAudioSendSystemFactory implements AudioSendSystemFactory, Aut
       closed = true;
 
       synchronized (lock) {
-        if (queueManager != null) {
+        if (queueManagers != null) {
           schedulerToShutDown = shutdownQueueManager();
         }
       }
@@ -99,11 +182,12 @@ public class NativeAudioSendSystemFactory implements AudioSendSystemFactory, Aut
         throw new IllegalStateException("Factory is closed");
       }
 
-      systems.add(system);
-
-      if (queueManager == null) {
+      if (queueManagers == null) {
         initialiseQueueManager();
       }
+
+      system.setStreamMetrics(metricsListener.onStreamAdded(system.getQueueKey()));
+      systems.add(system);
     }
   }
 
@@ -111,14 +195,19 @@ public class NativeAudioSendSystemFactory implements AudioSendSystemFactory, Aut
     ScheduledExecutorService schedulerToShutDown = null;
 
     synchronized (lock) {
-      UdpQueueManager manager = queueManager;
+      UdpQueueManager[] managers = queueManagers;
 
-      if (manager != null) {
-        system.deleteQueue(manager);
+      if (managers != null) {
+        system.deleteQueue(getManager(managers, system));
       }
 
-      if (systems.remove(system) && systems.isEmpty() && manager != null) {
-        schedulerToShutDown = shutdownQueueManager();
+      if (systems.remove(system)) {
+        system.setStreamMetrics(StreamMetricsListener.NONE);
+        metricsListener.onStreamRemoved(system.getQueueKey());
+
+        if (systems.isEmpty() && managers != null) {
+          schedulerToShutDown = shutdownQueueManager();
+        }
       }
     }
 
@@ -127,13 +216,58 @@ public class NativeAudioSendSystemFactory implements AudioSendSystemFactory, Aut
     }
   }
 
-  private void populateQueues() {
-    UdpQueueManager manager = queueManager; /* avoid getfield opcode */
+  void flushInstance(NativeAudioSendSystem system) {
+    UdpQueueManager[] managers = queueManagers;
+
+    if (managers != null && systems.contains(system)) {
+      // Flushes happen on user actions such as seeking, so they can share one set of buffers.
+      synchronized (flushBuffers) {
+        system.flushQueue(getManager(managers, system), flushBuffers);
+      }
+    }
+  }
+
+  static <T extends PacketQueueSink> T getManager(T[] managers, NativeAudioSendSystem system) {
+    return managers[(int) (system.getQueueKey() % managers.length)];
+  }
+
+  /**
+   * Populates the queues of one partition and precomputes their keystreams. Scheduled with a fixed delay, so it never
+   * overlaps with itself, which keeps each stream to one populating thread at a time.
+   */
+  private class PartitionTask implements Runnable {
+    private final QueuePopulator populator;
+    private final long populateInterval;
+    private final int precomputeCycles;
+    private long tick;
+
+    private PartitionTask(QueuePopulator populator, int populateInterval) {
+      this.populator = populator;
+      this.populateInterval = TimeUnit.MILLISECONDS.toNanos(populateInterval);
+      this.precomputeCycles = Math.max(1, POPULATE_INTERVAL / populateInterval);
+    }
+
+    @Override
+    public void run() {
+      UdpQueueManager[] managers = queueManagers; /* avoid getfield opcode */
+
+      if (managers == null) {
+        return;
+      }
+
+      if (tick % 2 == 0) {
+        metricsListener.onPopulateCycleStarted();
+        long start = System.nanoTime();
+        populator.populate(systems, managers);
 
-    if (manager != null) {
-      for (NativeAudioSendSystem system : systems) {
-        system.populateQueue(manager);
+        long duration = System.nanoTime() - start;
+        metricsListener.onPopulateCycle(duration, duration > populateInterval);
+      } else if (keystreamPrecomputeCount > 0 && (tick / 2) % precomputeCycles == 0) {
+        // Half a populate interval after the last cycle of this partition, so it does not delay the next one.
+        populator.precomputeKeystreams(systems, keystreamPrecomputeCount);
       }
+
+      tick++;
     }
   }
 
@@ -144,6 +278,14 @@ public class NativeAudioSendSystemFactory implements AudioSendSystemFactory, Aut
   public static class Builder {
     private SocketHandles socketHandles = null;
     private int bufferDuration = DEFAULT_BUFFER_DURATION;
+    private int keystreamPrecomputeCount = 0;
+    private int shardCount = 1;
+    private SendThreadInitializer sendThreadInitializer = null;
+    private int populatorThreads = 1;
+    private int lowWatermark = 0;
+    private int cycleBudget = 0;
+    private SendMetricsListener metricsListener = SendMetricsListener.NONE;
+    private int latencySampleInterval = 0;
 
     public Builder socketHandles(long ipv4SocketHandle, long ipv6SocketHandle) {
       this.socketHandles = new SocketHandles(ipv4SocketHandle, ipv6SocketHandle);
@@ -155,16 +297,130 @@ public class NativeAudioSendSystemFactory implements AudioSendSystemFactory, Aut
       return this;
     }
 
+    /**
+     * @param bufferDuration Capacity of the native queues in milliseconds. This is the buffer duration of streams which
+     *                       do not request their own, and the upper limit for those which do.
+     * @see AudioPacketProvider#setBufferDuration(int, boolean)
+     */
     public Builder bufferDuration(int bufferDuration) {
       this.bufferDuration = bufferDuration;
       return this;
     }
 
+    /**
+     * @param packetCount Number of upcoming packets per stream to compute the keystream for in the background between
+     *                    queue refills. Only applies to nonce strategies with predictable nonces. Zero to disable.
+     */
+    public Builder keystreamPrecompute(int packetCount) {
+      this.keystreamPrecomputeCount = packetCount;
+      return this;
+    }
+
+    /**
+     * @param shardCount Number of native queue managers, each with its own send thread. Streams are assigned to them by
+     *                   their queue key.
+     */
+    public Builder shardCount(int shardCount) {
+      if (shardCount < 1) {
+        throw new IllegalArgumentException("Shard count must be at least 1.");
+      }
+
+      this.shardCount = shardCount;
+      return this;
+    }
+
+    /**
+     * @param sendThreadInitializer Called on each send thread before it starts sending, for example to pin it to a set
+     *                              of CPUs.
+     */
+    public Builder sendThreadInitializer(SendThreadInitializer sendThreadInitializer) {
+      this.sendThreadInitializer = sendThreadInitializer;
+      return this;
+    }
+
+    /**
+     * @param populatorThreads Number of threads to populate the queues with. Streams are split into this many
+     *                         partitions by their queue key, each populated by one thread at a time. Using the same
+     *                         count as the shard count makes each thread only fill the queues of its own shard.
+     */
+    public Builder populatorThreads(int populatorThreads) {
+      if (populatorThreads < 1) {
+        throw new IllegalArgumentException("Populator thread count must be at least 1.");
+      }
+
+      this.populatorThreads = populatorThreads;
+      return this;
+    }
+
+    /**
+     * @param lowWatermark Number of packets left in the queue of a stream at which it is refilled. Streams with more
+     *                     packets queued than that are skipped, and the queues are checked every 10 milliseconds
+     *                     instead of every 40. Zero to refill every stream on each 40 millisecond cycle.
+     */
+    public Builder lowWatermark(int lowWatermark) {
+      if (lowWatermark < 0) {
+        throw new IllegalArgumentException("Low watermark must not be negative.");
+      }
+
+      this.lowWatermark = lowWatermark;
+      return this;
+    }
+
+    /**
+     * @param cycleBudget Time in milliseconds one populate cycle may spend filling queues. Streams reached after that
+     *                    only get enough packets to last until the next cycle. Zero for no limit.
+     */
+    public Builder cycleBudget(int cycleBudget) {
+      if (cycleBudget < 0) {
+        throw new IllegalArgumentException("Cycle budget must not be negative.");
+      }
+
+      this.cycleBudget = cycleBudget;
+      return this;
+    }
+
+    /**
+     * @param metricsListener Listener for the events of the send path of all streams of this factory
+     */
+    public Builder metricsListener(SendMetricsListener metricsListener) {
+      this.metricsListener = metricsListener;
+      return this;
+    }
+
+    /**
+     * @param latencySampleInterval Every how many packets of a stream one is traced from its frame provider to the
+     *                              socket, zero to disable tracing. The native queue does not report when a packet is
+     *                              sent, so the send time is estimated from the queue depth read at the next refill of
+     *                              the stream, which is accurate to about one packet interval.
+     * @see com.sedmelluq.lava.discord.dispatch.AudioSendSystem#getFrameLatency()
+     */
+    public Builder latencySampleInterval(int latencySampleInterval) {
+      if (latencySampleInterval < 0) {
+        throw new IllegalArgumentException("Latency sample interval must not be negative.");
+      }
+
+      this.latencySampleInterval = latencySampleInterval;
+      return this;
+    }
+
     public NativeAudioSendSystemFactory build() {
-      return new NativeAudioSendSystemFactory(bufferDuration, socketHandles);
+      return new NativeAudioSendSystemFactory(this);
     }
   }
 
+  /**
+   * Hook for configuring the native send threads. Java has no API for CPU affinity, so pinning a send thread to a CPU
+   * set is done by calling an affinity library of choice from here.
+   */
+  public interface SendThreadInitializer {
+    /**
+     * Called on the send thread itself, before it starts sending.
+     *
+     * @param shardIndex Index of the shard the thread sends for
+     */
+    void initialise(int shardIndex);
+  }
+
   public static class SocketHandles {
     public final long ipv4SocketHandle;
     public final long ipv6SocketHandle;
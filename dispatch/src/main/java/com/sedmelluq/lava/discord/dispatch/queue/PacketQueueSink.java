@@ -0,0 +1,54 @@
+package com.sedmelluq.lava.discord.dispatch.queue;
+
+import com.sedmelluq.lava.discord.dispatch.SocketAddressInfo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Per-stream packet queues which {@link NativeAudioSendSystem} fills. {@link UdpQueueManager} is the implementation
+ * which sends the packets, others may be used to drive the populate path without the native library.
+ */
+public interface PacketQueueSink {
+  /**
+   * @return Maximum number of packets in one queue
+   */
+  int getCapacity();
+
+  /**
+   * @param key Unique queue identifier
+   * @return Number of empty packet slots in the specified queue
+   */
+  int getRemainingCapacity(long key);
+
+  /**
+   * Snapshot of the remaining capacity of several queues.
+   *
+   * @param keys Unique queue identifiers
+   * @param count Number of keys to use from the start of the array
+   * @param capacities Array to write the remaining capacity of each queue into, at the same index as its key
+   */
+  default void getRemainingCapacities(long[] keys, int count, int[] capacities) {
+    for (int i = 0; i < count; i++) {
+      capacities[i] = getRemainingCapacity(keys[i]);
+    }
+  }
+
+  /**
+   * Adds several packets to the specified queue. Stops at the first packet which does not fit into the queue.
+   *
+   * @param key Unique queue identifier
+   * @param destination Address and optional explicit socket handle to send the packets with
+   * @param buffers Packets to add to the queue, each from the start of the buffer up to its limit
+   * @param count Number of packets to use from the start of the array
+   * @return Number of packets added to the queue
+   */
+  int queuePackets(long key, SocketAddressInfo destination, ByteBuffer[] buffers, int count);
+
+  /**
+   * Drops all packets in the queue, which can be refilled right away.
+   *
+   * @param key Unique queue identifier
+   * @return True if the queue existed
+   */
+  boolean flushQueue(long key);
+}
@@ -0,0 +1,180 @@
+package com.sedmelluq.lava.discord.dispatch.queue;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Populates the queues of one partition of the streams of a factory. Streams are assigned to partitions by their queue
+ * key, so each stream is only ever populated by the populator of its partition.
+ *
+ * With a low watermark set, a stream is only refilled once its queue is expected to have drained to the watermark. The
+ * native queues send one packet per packet interval, so that moment follows from the number of packets in the queue
+ * right after the previous refill.
+ *
+ * Each cycle fills the queues with the fewest packets left first. With a cycle budget set, streams which are reached
+ * only after the budget is used up are just topped up to a minimal level, and filled fully on a later cycle.
+ */
+@NotThreadSafe
+class QueuePopulator {
+  private final int partitionIndex;
+  private final int partitionCount;
+  private final ByteBuffer[] packetBuffers;
+  private final int lowWatermark;
+  private final long packetInterval;
+  private final long idleRefillDelay;
+  private final long cycleBudget;
+  private final int minimumQueued;
+  private NativeAudioSendSystem[] partitionSystems = new NativeAudioSendSystem[16];
+  private int[] partitionCapacities = new int[16];
+  private int[] partitionGenerations = new int[16];
+  private long[] fillOrder = new long[16];
+  private int[] shardIndices = new int[16];
+  private long[] shardKeys = new long[16];
+  private int[] shardCapacities = new int[16];
+
+  /**
+   * @param lowWatermark Number of queued packets at which a stream is refilled, zero to refill all streams every cycle
+   * @param packetInterval Time interval between packets in a queue in nanoseconds
+   * @param idleRefillDelay Delay in nanoseconds before checking a stream again which had no packets to add
+   * @param cycleBudget Time in nanoseconds after which the remaining streams of a cycle are only topped up, zero for no
+   *                    limit
+   * @param minimumQueued Number of packets to top up to once the cycle budget is used up
+   */
+  QueuePopulator(int partitionIndex, int partitionCount, int batchSize, int packetBufferSize, int lowWatermark,
+                 long packetInterval, long idleRefillDelay, long cycleBudget, int minimumQueued) {
+
+    this.partitionIndex = partitionIndex;
+    this.partitionCount = partitionCount;
+    this.lowWatermark = lowWatermark;
+    this.packetInterval = packetInterval;
+    this.idleRefillDelay = idleRefillDelay;
+    this.cycleBudget = cycleBudget;
+    this.minimumQueued = minimumQueued;
+    this.packetBuffers = new ByteBuffer[batchSize];
+
+    for (int i = 0; i < packetBuffers.length; i++) {
+      packetBuffers[i] = ByteBuffer.allocateDirect(packetBufferSize);
+    }
+  }
+
+  void populate(Iterable<NativeAudioSendSystem> systems, PacketQueueSink[] managers) {
+    long now = System.nanoTime();
+    int count = collectPartition(systems, now);
+
+    for (PacketQueueSink manager : managers) {
+      snapshotShard(managers, manager, count);
+    }
+
+    sortByUrgency(managers, count);
+
+    for (int i = 0; i < count; i++) {
+      int index = (int) fillOrder[i];
+      NativeAudioSendSystem system = partitionSystems[index];
+      PacketQueueSink manager = NativeAudioSendSystemFactory.getManager(managers, system);
+      int remaining = partitionCapacities[index];
+      int queued = manager.getCapacity() - remaining;
+      int maximumPackets = Integer.MAX_VALUE;
+      boolean deferred = cycleBudget > 0 && System.nanoTime() - now > cycleBudget;
+
+      if (deferred) {
+        maximumPackets = minimumQueued - queued;
+      }
+
+      int added = maximumPackets > 0 ?
+          system.populateQueue(manager, remaining, maximumPackets, partitionGenerations[index], packetBuffers) : 0;
+
+      if (lowWatermark > 0) {
+        scheduleRefill(system, queued + added, added == 0 && !deferred, now);
+      }
+    }
+
+    Arrays.fill(partitionSystems, 0, count, null);
+  }
+
+  void precomputeKeystreams(Iterable<NativeAudioSendSystem> systems, int packetCount) {
+    for (NativeAudioSendSystem system : systems) {
+      if (isInPartition(system)) {
+        system.precomputeKeystreams(packetCount);
+      }
+    }
+  }
+
+  private int collectPartition(Iterable<NativeAudioSendSystem> systems, long now) {
+    int count = 0;
+
+    for (NativeAudioSendSystem system : systems) {
+      if (isInPartition(system) && (lowWatermark == 0 || system.getNextRefillTime() - now <= 0)) {
+        if (count == partitionSystems.length) {
+          partitionSystems = Arrays.copyOf(partitionSystems, count * 2);
+          partitionCapacities = Arrays.copyOf(partitionCapacities, count * 2);
+          partitionGenerations = Arrays.copyOf(partitionGenerations, count * 2);
+          fillOrder = Arrays.copyOf(fillOrder, count * 2);
+        }
+
+        // Read before the capacity snapshot, so that a flush racing with the snapshot is noticed when populating.
+        partitionGenerations[count] = system.getFlushGeneration();
+        partitionSystems[count++] = system;
+      }
+    }
+
+    return count;
+  }
+
+  private void snapshotShard(PacketQueueSink[] managers, PacketQueueSink manager, int systemCount) {
+    int count = 0;
+
+    for (int i = 0; i < systemCount; i++) {
+      NativeAudioSendSystem system = partitionSystems[i];
+
+      if (NativeAudioSendSystemFactory.getManager(managers, system) == manager) {
+        ensureShardCapacity(count + 1);
+        shardIndices[count] = i;
+        shardKeys[count] = system.getQueueKey();
+        count++;
+      }
+    }
+
+    // Take the capacity snapshot of the whole shard at once instead of interleaving it with the enqueue calls.
+    manager.getRemainingCapacities(shardKeys, count, shardCapacities);
+
+    for (int i = 0; i < count; i++) {
+      partitionCapacities[shardIndices[i]] = shardCapacities[i];
+    }
+  }
+
+  private void sortByUrgency(PacketQueueSink[] managers, int count) {
+    for (int i = 0; i < count; i++) {
+      PacketQueueSink manager = NativeAudioSendSystemFactory.getManager(managers, partitionSystems[i]);
+      long queued = manager.getCapacity() - partitionCapacities[i];
+
+      // Number of queued packets in the upper half, so that sorting puts the emptiest queues first.
+      fillOrder[i] = (queued << 32) | i;
+    }
+
+    Arrays.sort(fillOrder, 0, count);
+  }
+
+  private void scheduleRefill(NativeAudioSendSystem system, int queued, boolean idle, long now) {
+    long delay = (queued - lowWatermark) * packetInterval;
+
+    if (idle) {
+      delay = Math.max(delay, idleRefillDelay);
+    }
+
+    system.setNextRefillTime(now + delay);
+  }
+
+  private boolean isInPartition(NativeAudioSendSystem system) {
+    return system.getQueueKey() % partitionCount == partitionIndex;
+  }
+
+  private void ensureShardCapacity(int count) {
+    if (count > shardIndices.length) {
+      int length = Math.max(count, shardIndices.length * 2);
+      shardIndices = Arrays.copyOf(shardIndices, length);
+      shardKeys = Arrays.copyOf(shardKeys, length);
+      shardCapacities = Arrays.copyOf(shardCapacities, length);
+    }
+  }
+}
@@ -3,17 +3,24 @@ package com.sedmelluq.lava.discord.dispatch.queue;
 import com.sedmelluq.discord.lavaplayer.udpqueue.natives.UdpQueueManagerLibrary;
 
 import com.sedmelluq.lava.common.natives.NativeResourceHolder;
+import com.sedmelluq.lava.discord.dispatch.SocketAddressInfo;
 import javax.annotation.concurrent.ThreadSafe;
 import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * Manages sending out queues of UDP packets at a fixed interval.
+ * Manages sending out queues of UDP packets at a fixed interval. Calls into the native instance only share a read lock
+ * of this manager, which is taken exclusively when the instance is freed, so different managers and different threads
+ * using the same manager do not block each other.
  */
 @ThreadSafe
-public class UdpQueueManager extends NativeResourceHolder {
+public class UdpQueueManager extends NativeResourceHolder implements PacketQueueSink {
   private final int bufferCapacity;
   private final UdpQueueManagerLibrary library;
   private final long instance;
+  private final Lock readLock;
+  private final Lock writeLock;
   private boolean released;
 
   /**
@@ -24,6 +31,10 @@ public class UdpQueueManager extends NativeResourceHolder {
     this.bufferCapacity = bufferCapacity;
     library = UdpQueueManagerLibrary.getInstance();
     instance = library.create(bufferCapacity, packetInterval);
+
+    ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    readLock = lock.readLock();
+    writeLock = lock.writeLock();
   }
 
   /**
@@ -32,19 +43,46 @@ public class UdpQueueManager extends NativeResourceHolder {
    * @param key Unique queue identifier
    * @return Number of empty packet slots in the specified queue
    */
+  @Override
   public int getRemainingCapacity(long key) {
-    synchronized (library) {
+    readLock.lock();
+
+    try {
       if (released) {
         return 0;
       }
 
       return library.getRemainingCapacity(instance, key);
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  /**
+   * Snapshot of the remaining capacity of several queues, taken without releasing the lock in between. Capacities are
+   * reported as zero once the manager is closed.
+   *
+   * @param keys Unique queue identifiers
+   * @param count Number of keys to use from the start of the array
+   * @param capacities Array to write the remaining capacity of each queue into, at the same index as its key
+   */
+  @Override
+  public void getRemainingCapacities(long[] keys, int count, int[] capacities) {
+    readLock.lock();
+
+    try {
+      for (int i = 0; i < count; i++) {
+        capacities[i] = released ? 0 : library.getRemainingCapacity(instance, keys[i]);
+      }
+    } finally {
+      readLock.unlock();
     }
   }
 
   /**
    * @return Total capacity used for queues in this manager.
    */
+  @Override
   public int getCapacity() {
     return bufferCapacity;
   }
@@ -59,7 +97,9 @@ public class UdpQueueManager extends NativeResourceHolder {
    * @return True if adding the packet to the queue succeeded
    */
   public boolean queuePacket(long key, String hostAddress, int port, ByteBuffer buffer, long explicitSocket) {
-    synchronized (library) {
+    readLock.lock();
+
+    try {
       if (released) {
         return false;
       }
@@ -69,16 +109,94 @@ public class UdpQueueManager extends NativeResourceHolder {
       } else {
         return library.queuePacketWithSocket(instance, key, hostAddress, port, buffer, buffer.limit(), explicitSocket);
       }
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  /**
+   * @param key Unique queue identifier
+   * @param destination Address and optional explicit socket handle to send the packets with
+   * @param buffers Packets to add to the queue, each from the start of the buffer up to its limit
+   * @param count Number of packets to use from the start of the array
+   * @return Number of packets added to the queue
+   */
+  @Override
+  public int queuePackets(long key, SocketAddressInfo destination, ByteBuffer[] buffers, int count) {
+    return queuePackets(key, destination.hostAddress, destination.port, buffers, count,
+        destination.explicitSourceSocketHandle);
+  }
+
+  /**
+   * Adds several packets to the specified queue under one lock acquisition. Stops at the first packet which does not
+   * fit into the queue.
+   *
+   * @param key Unique queue identifier
+   * @param buffers Packets to add to the queue, each from the start of the buffer up to its limit
+   * @param count Number of packets to use from the start of the array
+   * @return Number of packets added to the queue
+   */
+  public int queuePackets(long key, String hostAddress, int port, ByteBuffer[] buffers, int count,
+                          long explicitSocket) {
+
+    readLock.lock();
+
+    try {
+      if (released) {
+        return 0;
+      }
+
+      for (int i = 0; i < count; i++) {
+        ByteBuffer buffer = buffers[i];
+        boolean queued;
+
+        if (explicitSocket == -1) {
+          queued = library.queuePacket(instance, key, hostAddress, port, buffer, buffer.limit());
+        } else {
+          queued = library.queuePacketWithSocket(instance, key, hostAddress, port, buffer, buffer.limit(),
+              explicitSocket);
+        }
+
+        if (!queued) {
+          return i;
+        }
+      }
+
+      return count;
+    } finally {
+      readLock.unlock();
     }
   }
 
+  /**
+   * Drops all packets in the queue, which can be refilled right away. The native library has no separate flush, a
+   * deleted queue is created again by the next packet added to it.
+   *
+   * @param key Unique queue identifier
+   * @return True if the queue existed
+   */
+  @Override
+  public boolean flushQueue(long key) {
+    return deleteQueue(key);
+  }
+
+  /**
+   * Deletes the queue of a stream which is removed.
+   *
+   * @param key Unique queue identifier
+   * @return True if the queue existed
+   */
   public boolean deleteQueue(long key) {
-    synchronized (library) {
+    readLock.lock();
+
+    try {
       if (released) {
         return false;
       }
 
       return library.deleteQueue(instance, key);
+    } finally {
+      readLock.unlock();
     }
   }
 
@@ -96,9 +214,13 @@ public class UdpQueueManager extends NativeResourceHolder {
 
   @Override
   protected void freeResources() {
-    synchronized (library) {
+    writeLock.lock();
+
+    try {
       released = true;
       library.destroy(instance);
+    } finally {
+      writeLock.unlock();
     }
   }
 }
@@ -0,0 +1,92 @@
+package com.sedmelluq.lava.discord.dispatch.metrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameLatencyTracerTest {
+  private static final long PACKET_INTERVAL = 1000;
+
+  private final List<Long> latencies = new ArrayList<>();
+  private final SendMetricsListener listener = new SendMetricsListener() {
+    @Override
+    public void onFrameLatency(long streamId, long latency) {
+      latencies.add(latency);
+    }
+  };
+
+  @Test
+  public void samplesEveryNthPacketSentRightAway() {
+    FrameLatencyTracer tracer = new FrameLatencyTracer(1, 3, PACKET_INTERVAL, listener);
+
+    for (int i = 0; i < 7; i++) {
+      tracer.onSent(i * 100, i * 100 + 10 + i);
+    }
+
+    assertEquals(Arrays.asList(10L, 13L, 16L), latencies);
+    assertEquals(3, tracer.getLatency().getCount());
+  }
+
+  @Test
+  public void estimatesSendTimeOfQueuedPacketsFromDepth() {
+    FrameLatencyTracer tracer = new FrameLatencyTracer(1, 4, PACKET_INTERVAL, listener);
+
+    assertTrue(tracer.isSampled(10));
+    tracer.onQueued(0, 10);
+
+    // Six packets have left, the last of them just now, so packet 0 left five intervals ago and packet 4 one ago.
+    tracer.onQueueDepth(10000, 4);
+    assertEquals(Arrays.asList(5000L, 9000L), latencies);
+    assertTrue(tracer.hasPending());
+
+    tracer.onQueueDepth(12000, 0);
+    assertEquals(Arrays.asList(5000L, 9000L, 11000L), latencies);
+    assertFalse(tracer.hasPending());
+  }
+
+  @Test
+  public void boundsEstimatedSendTimeByPreviousDepthRead() {
+    FrameLatencyTracer tracer = new FrameLatencyTracer(1, 4, PACKET_INTERVAL, listener);
+    tracer.onQueued(0, 12);
+    tracer.onQueueDepth(12000, 0);
+    latencies.clear();
+
+    // Packets 12 and 16 were queued after the previous read, so they cannot have been sent before it.
+    tracer.onQueued(11500, 8);
+    tracer.onQueueDepth(12500, 0);
+    assertEquals(Arrays.asList(500L, 500L), latencies);
+  }
+
+  @Test
+  public void forgetsPendingSamplesWhenQueueIsDropped() {
+    FrameLatencyTracer tracer = new FrameLatencyTracer(1, 1, PACKET_INTERVAL, listener);
+    tracer.onQueued(0, 5);
+    tracer.onQueueDropped();
+
+    assertFalse(tracer.hasPending());
+    tracer.onQueueDepth(10000, 0);
+    assertEquals(0, latencies.size());
+  }
+
+  @Test
+  public void keepsBoundedNumberOfPendingSamples() {
+    FrameLatencyTracer tracer = new FrameLatencyTracer(1, 1, PACKET_INTERVAL, listener);
+    tracer.onQueued(0, 100);
+    tracer.onQueueDepth(200000, 0);
+
+    assertEquals(64, latencies.size());
+    assertFalse(tracer.isSampled(0));
+    assertTrue(tracer.isSampled(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsSampleIntervalBelowOne() {
+    new FrameLatencyTracer(1, 0, PACKET_INTERVAL, listener);
+  }
+}
@@ -0,0 +1,92 @@
+package com.sedmelluq.lava.discord.dispatch.packet;
+
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketBuilder.NonceStrategy;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class AesGcmRtpsizeTest {
+  private static final int SOURCE_IDENTIFIER = 0x01020304;
+  private static final char SEQUENCE_NUMBER = 0x1234;
+  private static final int TIMESTAMP = 0x0A0B0C0D;
+  private static final byte[] PAYLOAD = "rtpsize payload".getBytes(StandardCharsets.US_ASCII);
+
+  // RTP header, cipher text, GCM tag and the nonce counter, from an independent AES-GCM implementation.
+  private static final String EXPECTED_PACKET = "807812340a0b0c0d01020304" +
+      "3642bdd9652091882f5d1cfcc6dc51" +
+      "a4bce0cce5c29e141c50fefbb37310e5" +
+      "00000001";
+
+  @Test
+  public void writesHeaderCipherTextTagAndCounter() {
+    AudioPacketBuilder builder = createBuilder();
+    byte[] packet = writePacket(builder, SEQUENCE_NUMBER, TIMESTAMP);
+
+    assertArrayEquals(fromHex(EXPECTED_PACKET), packet);
+  }
+
+  @Test
+  public void decryptsWithHeaderAsAdditionalDataAndCounterAsIvPrefix() throws Exception {
+    AudioPacketBuilder builder = createBuilder();
+
+    for (int i = 1; i <= 3; i++) {
+      byte[] packet = writePacket(builder, (char) (SEQUENCE_NUMBER + i), TIMESTAMP + i * 960);
+      byte[] counter = Arrays.copyOfRange(packet, packet.length - 4, packet.length);
+
+      assertArrayEquals(new byte[] { 0, 0, 0, (byte) i }, counter);
+      assertArrayEquals(PAYLOAD, decrypt(packet));
+    }
+  }
+
+  private static AudioPacketBuilder createBuilder() {
+    return new AudioPacketBuilder(createSecretKey(), SOURCE_IDENTIFIER, NonceStrategy.AES256_GCM_RTPSIZE);
+  }
+
+  private static byte[] writePacket(AudioPacketBuilder builder, char sequenceNumber, int timestamp) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+    builder.getPayloadBuffer(buffer, 0).put(PAYLOAD);
+    builder.writeEncrypted(buffer, 0, sequenceNumber, timestamp);
+    buffer.flip();
+
+    byte[] packet = new byte[buffer.remaining()];
+    buffer.get(packet);
+    return packet;
+  }
+
+  private static byte[] decrypt(byte[] packet) throws Exception {
+    byte[] iv = new byte[12];
+    System.arraycopy(packet, packet.length - 4, iv, 0, 4);
+
+    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(createSecretKey(), "AES"), new GCMParameterSpec(128, iv));
+    cipher.updateAAD(packet, 0, 12);
+    return cipher.doFinal(packet, 12, packet.length - 12 - 4);
+  }
+
+  private static byte[] createSecretKey() {
+    byte[] secretKey = new byte[32];
+
+    for (int i = 0; i < secretKey.length; i++) {
+      secretKey[i] = (byte) i;
+    }
+
+    return secretKey;
+  }
+
+  private static byte[] fromHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    }
+
+    return bytes;
+  }
+}
@@ -0,0 +1,77 @@
+package com.sedmelluq.lava.discord.dispatch.packet;
+
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketEncryption.Poly1305;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static com.sedmelluq.lava.discord.dispatch.packet.Salsa20Test.AUTHENTICATION_KEY;
+import static com.sedmelluq.lava.discord.dispatch.packet.Salsa20Test.CIPHER_TEXT;
+import static com.sedmelluq.lava.discord.dispatch.packet.Salsa20Test.fromHex;
+import static com.sedmelluq.lava.discord.dispatch.packet.Salsa20Test.getAt;
+import static com.sedmelluq.lava.discord.dispatch.packet.Salsa20Test.putAt;
+import static org.junit.Assert.assertArrayEquals;
+
+public class Poly1305Test {
+  @Test
+  public void authenticatesSecretboxCipherText() {
+    assertTag("f3ffc7703f9400e52a7dfb4b3d3305d9", AUTHENTICATION_KEY, CIPHER_TEXT);
+  }
+
+  @Test
+  public void authenticatesRfc7539Message() {
+    assertTag("a8061dc1305136c6c22b8baf0c0127a9",
+        fromHex("85d6be7857556d337f4452fe42d506a80103808afb0db2fd4abff6af4149f51b"),
+        "Cryptographic Forum Research Group".getBytes(StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  public void reducesFullyInEdgeCases() {
+    // Test vectors 5 to 8 from appendix A.3 of RFC 7539, where the accumulator ends up at or just above the prime.
+    assertTag("03000000000000000000000000000000", fromHex("02" + repeat("00", 31)), fromHex(repeat("ff", 16)));
+
+    assertTag("03000000000000000000000000000000", fromHex("02" + repeat("00", 15) + repeat("ff", 16)),
+        fromHex("02" + repeat("00", 15)));
+
+    assertTag("05000000000000000000000000000000", fromHex("01" + repeat("00", 31)),
+        fromHex(repeat("ff", 16) + "f0" + repeat("ff", 15) + "11" + repeat("00", 15)));
+
+    assertTag("00000000000000000000000000000000", fromHex("01" + repeat("00", 31)),
+        fromHex(repeat("ff", 16) + "fb" + repeat("fe", 15) + repeat("01", 16)));
+  }
+
+  private static void assertTag(String expectedHex, byte[] key, byte[] message) {
+    byte[] expected = fromHex(expectedHex);
+    Poly1305 poly1305 = new Poly1305();
+
+    byte[] output = new byte[20];
+    poly1305.process(key, message, 0, message.length, output, 4);
+    assertArrayEquals(expected, Arrays.copyOfRange(output, 4, 20));
+
+    for (boolean direct : new boolean[] { false, true }) {
+      for (ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+        int capacity = message.length + 32;
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        buffer.order(order);
+        putAt(buffer, 3, message);
+        poly1305.process(key, buffer, 3, message.length, buffer, 3 + message.length);
+
+        assertArrayEquals(expected, getAt(buffer, 3 + message.length, 16));
+        assertArrayEquals(message, getAt(buffer, 3, message.length));
+      }
+    }
+  }
+
+  private static String repeat(String value, int count) {
+    StringBuilder builder = new StringBuilder();
+
+    for (int i = 0; i < count; i++) {
+      builder.append(value);
+    }
+
+    return builder.toString();
+  }
+}
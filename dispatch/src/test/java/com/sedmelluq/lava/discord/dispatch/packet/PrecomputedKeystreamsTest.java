@@ -0,0 +1,147 @@
+package com.sedmelluq.lava.discord.dispatch.packet;
+
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketBuilder.NonceStrategy;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketEncryption.Salsa20;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.sedmelluq.lava.discord.dispatch.packet.Salsa20Test.AUTHENTICATION_KEY;
+import static com.sedmelluq.lava.discord.dispatch.packet.Salsa20Test.CIPHER_TEXT;
+import static com.sedmelluq.lava.discord.dispatch.packet.Salsa20Test.MESSAGE;
+import static com.sedmelluq.lava.discord.dispatch.packet.Salsa20Test.NONCE;
+import static com.sedmelluq.lava.discord.dispatch.packet.Salsa20Test.SECRET_KEY;
+import static com.sedmelluq.lava.discord.dispatch.packet.Salsa20Test.getAt;
+import static com.sedmelluq.lava.discord.dispatch.packet.Salsa20Test.putAt;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PrecomputedKeystreamsTest {
+  @Test
+  public void takesEntriesInOrderAcrossRingWrapAround() {
+    PrecomputedKeystreams keystreams = new PrecomputedKeystreams(3, 1);
+    int[][] pushed = new int[8][];
+
+    for (int i = 0; i < 3; i++) {
+      pushed[i] = push(keystreams, i);
+    }
+
+    assertSame(pushed[0], keystreams.take(nonce(0)));
+    assertSame(pushed[1], keystreams.take(nonce(1)));
+
+    // The ring is three entries long, so these go to the two entries which were taken.
+    pushed[3] = push(keystreams, 3);
+    pushed[4] = push(keystreams, 4);
+    assertEquals(3, keystreams.size());
+
+    for (int i = 2; i < 5; i++) {
+      assertSame(pushed[i], keystreams.take(nonce(i)));
+    }
+
+    assertEquals(0, keystreams.size());
+    assertNull(keystreams.take(nonce(5)));
+  }
+
+  @Test
+  public void discardsAllEntriesOnNonceMismatch() {
+    PrecomputedKeystreams keystreams = new PrecomputedKeystreams(4, 1);
+
+    for (int i = 0; i < 3; i++) {
+      push(keystreams, i);
+    }
+
+    assertNull(keystreams.take(nonce(1)));
+    assertEquals(0, keystreams.size());
+    assertNull(keystreams.take(nonce(0)));
+
+    int[] keystream = push(keystreams, 7);
+    assertSame(keystream, keystreams.take(nonce(7)));
+  }
+
+  @Test
+  public void precomputedKeystreamEncryptsLikeComputedOne() {
+    // The vector message is three blocks long including the authentication key, so this covers a keystream which is
+    // shorter than the message, exactly as long as it and longer than it.
+    for (int blocks = 1; blocks <= 4; blocks++) {
+      Salsa20 salsa20 = new Salsa20(SECRET_KEY);
+      int[] keystream = new int[8 + blocks * 16];
+      salsa20.precompute(NONCE, keystream);
+
+      ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+      putAt(buffer, 0, MESSAGE);
+
+      byte[] authenticationKey = new byte[32];
+      salsa20.process(NONCE, keystream, buffer, 0, MESSAGE.length, authenticationKey);
+
+      assertArrayEquals(AUTHENTICATION_KEY, authenticationKey);
+      assertArrayEquals(CIPHER_TEXT, getAt(buffer, 0, MESSAGE.length));
+    }
+  }
+
+  @Test
+  public void builderPacketsMatchAcrossSequenceNumberWrapAround() {
+    for (NonceStrategy strategy : new NonceStrategy[] { NonceStrategy.INCREMENTING_INT, NonceStrategy.PACKET_HEADER }) {
+      AudioPacketBuilder precomputing = new AudioPacketBuilder(SECRET_KEY, 1234, strategy);
+      AudioPacketBuilder plain = new AudioPacketBuilder(SECRET_KEY, 1234, strategy);
+      char sequenceNumber = 0xfffa;
+      int timestamp = -960 * 3;
+
+      for (int i = 0; i < 12; i++) {
+        if (i % 4 == 0) {
+          precomputing.precomputeKeystreams(4, sequenceNumber, timestamp, 960);
+        }
+
+        assertArrayEquals(writePacket(plain, sequenceNumber, timestamp, i),
+            writePacket(precomputing, sequenceNumber, timestamp, i));
+
+        sequenceNumber++;
+        timestamp += 960;
+      }
+    }
+  }
+
+  @Test
+  public void builderPacketsMatchWhenPrecomputedForOtherPackets() {
+    AudioPacketBuilder precomputing = new AudioPacketBuilder(SECRET_KEY, 1234, NonceStrategy.PACKET_HEADER);
+    AudioPacketBuilder plain = new AudioPacketBuilder(SECRET_KEY, 1234, NonceStrategy.PACKET_HEADER);
+
+    precomputing.precomputeKeystreams(4, (char) 100, 0, 960);
+
+    for (int i = 0; i < 4; i++) {
+      char sequenceNumber = (char) (200 + i);
+      assertArrayEquals(writePacket(plain, sequenceNumber, i * 960, i),
+          writePacket(precomputing, sequenceNumber, i * 960, i));
+    }
+  }
+
+  private static int[] push(PrecomputedKeystreams keystreams, int value) {
+    System.arraycopy(nonce(value), 0, keystreams.tailNonce(), 0, 24);
+    int[] keystream = keystreams.tailKeystream();
+    keystreams.push();
+    return keystream;
+  }
+
+  private static byte[] nonce(int value) {
+    byte[] nonce = new byte[24];
+    nonce[0] = (byte) value;
+    return nonce;
+  }
+
+  private static byte[] writePacket(AudioPacketBuilder builder, char sequenceNumber, int timestamp, int index) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+    ByteBuffer payload = builder.getPayloadBuffer(buffer, 0);
+
+    for (int i = 0; i < 100 + index * 20; i++) {
+      payload.put((byte) (i * 31 + index));
+    }
+
+    builder.writeEncrypted(buffer, 0, sequenceNumber, timestamp);
+    buffer.flip();
+
+    byte[] packet = new byte[buffer.remaining()];
+    buffer.get(packet);
+    return packet;
+  }
+}
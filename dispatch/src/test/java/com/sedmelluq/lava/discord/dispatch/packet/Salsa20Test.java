@@ -0,0 +1,101 @@
+package com.sedmelluq.lava.discord.dispatch.packet;
+
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketEncryption.Salsa20;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class Salsa20Test {
+  // Secretbox test vector from the NaCl distribution.
+  static final byte[] SECRET_KEY = fromHex("1b27556473e985d462cd51197a9a46c76009549eac6474f206c4ee0844f68389");
+  static final byte[] NONCE = fromHex("69696ee955b62b73cd62bda875fc73d68219e0036b7a0b37");
+
+  static final byte[] MESSAGE = fromHex(
+      "be075fc53c81f2d5cf141316ebeb0c7b5228c52a4c62cbd44b66849b64244ffce5ecbaaf33bd751a1ac728d45e6c61296cdc3c01233561" +
+      "f41db66cce314adb310e3be8250c46f06dceea3a7fa1348057e2f6556ad6b1318a024a838f21af1fde048977eb48f59ffd4924ca1c60" +
+      "902e52f0a089bc76897040e082f937763848645e0705");
+
+  static final byte[] CIPHER_TEXT = fromHex(
+      "8e993b9f48681273c29650ba32fc76ce48332ea7164d96a4476fb8c531a1186ac0dfc17c98dce87b4da7f011ec48c97271d2c20f9b928f" +
+      "e2270d6fb863d51738b48eeee314a7cc8ab932164548e526ae90224368517acfeabd6bb3732bc0e9da99832b61ca01b6de56244a9e88" +
+      "d5f9b37973f622a43d14a6599b1f654cb45a74e355a5");
+
+  // First 32 bytes of the keystream, the Poly1305 key of the secretbox.
+  static final byte[] AUTHENTICATION_KEY = fromHex("eea6a7251c1e72916d11c2cb214d3c252539121d8e234e652d651fa4c8cff880");
+
+  @Test
+  public void encryptsArrayPrefixedWithZeros() {
+    byte[] message = new byte[32 + MESSAGE.length];
+    System.arraycopy(MESSAGE, 0, message, 32, MESSAGE.length);
+    byte[] cipher = new byte[message.length];
+
+    new Salsa20(SECRET_KEY).process(NONCE, cipher, message, message.length);
+
+    assertArrayEquals(AUTHENTICATION_KEY, Arrays.copyOfRange(cipher, 0, 32));
+    assertArrayEquals(CIPHER_TEXT, Arrays.copyOfRange(cipher, 32, cipher.length));
+  }
+
+  @Test
+  public void encryptsBufferInPlace() {
+    for (boolean direct : new boolean[] { false, true }) {
+      for (ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(256) : ByteBuffer.allocate(256);
+        buffer.order(order);
+        putAt(buffer, 7, MESSAGE);
+
+        byte[] authenticationKey = new byte[32];
+        new Salsa20(SECRET_KEY).process(NONCE, buffer, 7, MESSAGE.length, authenticationKey);
+
+        assertArrayEquals(AUTHENTICATION_KEY, authenticationKey);
+        assertArrayEquals(CIPHER_TEXT, getAt(buffer, 7, MESSAGE.length));
+      }
+    }
+  }
+
+  @Test
+  public void encryptsMessagesOfEveryLengthWithinFirstBlocks() {
+    Salsa20 salsa20 = new Salsa20(SECRET_KEY);
+
+    for (int length = 0; length <= 100; length++) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(128);
+      putAt(buffer, 0, Arrays.copyOf(MESSAGE, length));
+
+      byte[] authenticationKey = new byte[32];
+      salsa20.process(NONCE, buffer, 0, length, authenticationKey);
+
+      assertArrayEquals(AUTHENTICATION_KEY, authenticationKey);
+      assertArrayEquals(Arrays.copyOf(CIPHER_TEXT, length), getAt(buffer, 0, length));
+      assertArrayEquals(new byte[128 - length], getAt(buffer, length, 128 - length));
+    }
+  }
+
+  static void putAt(ByteBuffer buffer, int index, byte[] bytes) {
+    for (int i = 0; i < bytes.length; i++) {
+      buffer.put(index + i, bytes[i]);
+    }
+  }
+
+  static byte[] getAt(ByteBuffer buffer, int index, int length) {
+    byte[] bytes = new byte[length];
+
+    for (int i = 0; i < length; i++) {
+      bytes[i] = buffer.get(index + i);
+    }
+
+    return bytes;
+  }
+
+  static byte[] fromHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    }
+
+    return bytes;
+  }
+}
@@ -0,0 +1,148 @@
+package com.sedmelluq.lava.discord.dispatch.queue;
+
+import com.sedmelluq.lava.discord.dispatch.AudioSendSystem;
+import com.sedmelluq.lava.discord.dispatch.OpusFrameProvider;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketBuilder.NonceStrategy;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketProvider;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveBufferTest {
+  private static final long CYCLE = TimeUnit.MILLISECONDS.toNanos(40);
+  private static final int PACKETS_PER_CYCLE = 2;
+  private static final int CAPACITY = 20;
+
+  private final ByteBuffer[] buffers = new ByteBuffer[PACKETS_PER_CYCLE];
+  private final AdaptiveBuffer adaptiveBuffer = new AdaptiveBuffer();
+  private StallingFrameProvider frameProvider;
+  private AudioPacketProvider packetProvider;
+  private long now;
+
+  @Before
+  public void setUp() {
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = ByteBuffer.allocateDirect(1024);
+    }
+
+    frameProvider = new StallingFrameProvider();
+    packetProvider = new AudioPacketProvider(provider -> new IdleSendSystem(),
+        new InetSocketAddress("127.0.0.1", 50000), new byte[32], 1, NonceStrategy.INCREMENTING_INT, speaking -> {}, -1);
+    packetProvider.setFrameProvider(frameProvider);
+    packetProvider.initialize();
+
+    // Past the silence sent on connect.
+    runCycles(20);
+  }
+
+  @Test
+  public void doesNotGrowWhileFramesArrive() {
+    runCycles(50);
+    assertEquals(0, adaptiveBuffer.getExtraPackets());
+  }
+
+  @Test
+  public void growsOnceWhenProviderStallsForSeveralCycles() {
+    frameProvider.stalled = true;
+    runCycles(5);
+    frameProvider.stalled = false;
+    runCycles(5);
+
+    assertEquals(1, packetProvider.getUnderrunCount());
+    assertEquals(AdaptiveBuffer.GROW_PACKETS, adaptiveBuffer.getExtraPackets());
+  }
+
+  @Test
+  public void growsAgainOnEachStall() {
+    for (int i = 0; i < 3; i++) {
+      frameProvider.stalled = true;
+      runCycles(3);
+      frameProvider.stalled = false;
+      runCycles(3);
+    }
+
+    assertEquals(3 * AdaptiveBuffer.GROW_PACKETS, adaptiveBuffer.getExtraPackets());
+  }
+
+  @Test
+  public void doesNotGrowWhenTrackEnds() {
+    frameProvider.stalled = true;
+    runCycles(50);
+
+    assertEquals(0, packetProvider.getUnderrunCount());
+    assertEquals(0, adaptiveBuffer.getExtraPackets());
+  }
+
+  @Test
+  public void doesNotGrowWhenResumingAfterPause() {
+    frameProvider.stalled = true;
+    runCycles(50);
+    frameProvider.stalled = false;
+    runCycles(5);
+
+    assertEquals(0, packetProvider.getUnderrunCount());
+    assertEquals(0, adaptiveBuffer.getExtraPackets());
+  }
+
+  @Test
+  public void shrinksOncePlaybackIsStable() {
+    frameProvider.stalled = true;
+    runCycles(3);
+    frameProvider.stalled = false;
+
+    runCycles((int) (AdaptiveBuffer.STABLE_PERIOD / CYCLE) + 1);
+    assertEquals(AdaptiveBuffer.GROW_PACKETS - 1, adaptiveBuffer.getExtraPackets());
+  }
+
+  @Test
+  public void resetIgnoresStallsFromBefore() {
+    frameProvider.stalled = true;
+    runCycles(3);
+    frameProvider.stalled = false;
+    runCycles(1);
+    adaptiveBuffer.reset(packetProvider.getUnderrunCount());
+
+    runCycles(3);
+    assertEquals(0, adaptiveBuffer.getExtraPackets());
+  }
+
+  private void runCycles(int count) {
+    for (int i = 0; i < count; i++) {
+      // The queue still holds packets from earlier cycles, so they are needed in real time.
+      packetProvider.providePackets(buffers, PACKETS_PER_CYCLE, true);
+      adaptiveBuffer.update(now, packetProvider.getUnderrunCount(), CAPACITY);
+      now += CYCLE;
+    }
+  }
+
+  private static class StallingFrameProvider implements OpusFrameProvider {
+    private volatile boolean stalled;
+
+    @Override
+    public boolean provideOpusFrame(ByteBuffer buffer) {
+      if (stalled) {
+        return false;
+      }
+
+      buffer.put(new byte[] { 1, 2, 3, 4 });
+      return true;
+    }
+  }
+
+  private static class IdleSendSystem implements AudioSendSystem {
+    @Override
+    public void start() {
+      // Packets are pulled by the test itself.
+    }
+
+    @Override
+    public void shutdown() {
+      // Nothing to do.
+    }
+  }
+}
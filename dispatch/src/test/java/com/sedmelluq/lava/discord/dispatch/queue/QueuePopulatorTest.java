@@ -0,0 +1,226 @@
+package com.sedmelluq.lava.discord.dispatch.queue;
+
+import com.sedmelluq.lava.discord.dispatch.AudioSendSystem;
+import com.sedmelluq.lava.discord.dispatch.SocketAddressInfo;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketBuilder.NonceStrategy;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketProvider;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QueuePopulatorTest {
+  private static final int CAPACITY = 10;
+  private static final long PACKET_INTERVAL = TimeUnit.MILLISECONDS.toNanos(20);
+
+  private final NativeAudioSendSystemFactory factory = NativeAudioSendSystemFactory.builder().build();
+
+  @Test
+  public void fillsQueuesWithFewestPacketsFirst() {
+    RecordingQueueSink sink = new RecordingQueueSink();
+    List<NativeAudioSendSystem> systems = createSystems(sink, 6, 0, 3, 9);
+
+    createPopulator(0, 0).populate(systems, new PacketQueueSink[] { sink });
+
+    assertEquals(Arrays.asList(2L, 3L, 1L, 4L), sink.queueOrder);
+    assertQueued(sink, CAPACITY, CAPACITY, CAPACITY, CAPACITY);
+  }
+
+  @Test
+  public void topsUpQueuesReachedAfterBudgetIsUsedUp() {
+    RecordingQueueSink sink = new RecordingQueueSink();
+    sink.queueDelay = 100;
+    List<NativeAudioSendSystem> systems = createSystems(sink, 0, 2, 1, 6);
+
+    createPopulator(TimeUnit.MILLISECONDS.toNanos(50), 4).populate(systems, new PacketQueueSink[] { sink });
+
+    // The emptiest queue is filled fully within the budget, the others only up to the minimum.
+    assertEquals(Arrays.asList(1L, 3L, 2L), sink.queueOrder);
+    assertQueued(sink, CAPACITY, 4, 4, 6);
+  }
+
+  @Test
+  public void onlyTopsUpWhenBudgetIsUsedUpBeforeFirstQueue() {
+    RecordingQueueSink sink = new RecordingQueueSink();
+    sink.snapshotDelay = 100;
+    List<NativeAudioSendSystem> systems = createSystems(sink, 0, 5, 3);
+
+    createPopulator(TimeUnit.MILLISECONDS.toNanos(50), 4).populate(systems, new PacketQueueSink[] { sink });
+
+    assertEquals(Arrays.asList(1L, 3L), sink.queueOrder);
+    assertQueued(sink, 4, 5, 4);
+  }
+
+  @Test
+  public void refillsOnlyStreamsExpectedToReachLowWatermark() {
+    RecordingQueueSink sink = new RecordingQueueSink();
+    List<NativeAudioSendSystem> systems = createSystems(sink, 0, 0);
+    QueuePopulator populator = createPopulator(0, 1, 3, 0, 0, 0);
+
+    long start = System.nanoTime();
+    populator.populate(systems, new PacketQueueSink[] { sink });
+    long end = System.nanoTime();
+
+    // Seven packets above the watermark, the queue reaches it after seven packet intervals.
+    for (NativeAudioSendSystem system : systems) {
+      assertBetween(start + 7 * PACKET_INTERVAL, end + 7 * PACKET_INTERVAL, system.getNextRefillTime());
+    }
+
+    sink.queueOrder.clear();
+    sink.queued.put(1L, 2);
+    sink.queued.put(2L, 2);
+    systems.get(1).setNextRefillTime(System.nanoTime());
+    populator.populate(systems, new PacketQueueSink[] { sink });
+
+    assertEquals(Collections.singletonList(2L), sink.queueOrder);
+    assertQueued(sink, 2, CAPACITY);
+  }
+
+  @Test
+  public void waitsIdleDelayWhenNothingWasAdded() {
+    RecordingQueueSink sink = new RecordingQueueSink();
+    List<NativeAudioSendSystem> systems = createSystems(sink, CAPACITY);
+    long idleRefillDelay = TimeUnit.SECONDS.toNanos(1);
+
+    long start = System.nanoTime();
+    createPopulator(0, 1, 3, idleRefillDelay, 0, 0).populate(systems, new PacketQueueSink[] { sink });
+    long end = System.nanoTime();
+
+    assertBetween(start + idleRefillDelay, end + idleRefillDelay, systems.get(0).getNextRefillTime());
+  }
+
+  @Test
+  public void populatesOnlyStreamsOfItsPartition() {
+    RecordingQueueSink sink = new RecordingQueueSink();
+    List<NativeAudioSendSystem> systems = createSystems(sink, 0, 0, 0, 0, 0);
+
+    createPopulator(1, 3, 0, 0, 0, 0).populate(systems, new PacketQueueSink[] { sink });
+    assertEquals(Arrays.asList(1L, 4L), sink.queueOrder);
+
+    createPopulator(2, 3, 0, 0, 0, 0).populate(systems, new PacketQueueSink[] { sink });
+    assertEquals(Arrays.asList(1L, 4L, 2L, 5L), sink.queueOrder);
+    assertQueued(sink, CAPACITY, CAPACITY, 0, CAPACITY, CAPACITY);
+  }
+
+  private QueuePopulator createPopulator(long cycleBudget, int minimumQueued) {
+    return createPopulator(0, 1, 0, 0, cycleBudget, minimumQueued);
+  }
+
+  private QueuePopulator createPopulator(int partitionIndex, int partitionCount, int lowWatermark,
+                                         long idleRefillDelay, long cycleBudget, int minimumQueued) {
+
+    return new QueuePopulator(partitionIndex, partitionCount, 4, 1024, lowWatermark, PACKET_INTERVAL,
+        idleRefillDelay, cycleBudget, minimumQueued);
+  }
+
+  /**
+   * @param queued Number of packets initially in the queue of each system, the keys of the systems start from one
+   */
+  private List<NativeAudioSendSystem> createSystems(RecordingQueueSink sink, int... queued) {
+    List<NativeAudioSendSystem> systems = new ArrayList<>();
+
+    for (int i = 0; i < queued.length; i++) {
+      long key = i + 1;
+      sink.queued.put(key, queued[i]);
+      systems.add(new NativeAudioSendSystem(key, factory, createProvider()));
+    }
+
+    return systems;
+  }
+
+  private static AudioPacketProvider createProvider() {
+    AudioPacketProvider provider = new AudioPacketProvider(packetProvider -> new IdleSendSystem(),
+        new InetSocketAddress("127.0.0.1", 50000), new byte[32], 1, NonceStrategy.INCREMENTING_INT, speaking -> {}, -1);
+
+    provider.setFrameProvider(buffer -> {
+      buffer.put(new byte[20]);
+      return true;
+    });
+
+    return provider;
+  }
+
+  private static void assertQueued(RecordingQueueSink sink, int... expected) {
+    int[] queued = new int[expected.length];
+
+    for (int i = 0; i < queued.length; i++) {
+      queued[i] = sink.queued.get((long) i + 1);
+    }
+
+    assertEquals(Arrays.toString(expected), Arrays.toString(queued));
+  }
+
+  private static void assertBetween(long minimum, long maximum, long value) {
+    assertTrue(value + " is not between " + minimum + " and " + maximum, value - minimum >= 0 && maximum - value >= 0);
+  }
+
+  private static class RecordingQueueSink implements PacketQueueSink {
+    private final Map<Long, Integer> queued = new HashMap<>();
+    private final List<Long> queueOrder = new ArrayList<>();
+    private long snapshotDelay;
+    private long queueDelay;
+
+    @Override
+    public int getCapacity() {
+      return CAPACITY;
+    }
+
+    @Override
+    public int getRemainingCapacity(long key) {
+      return CAPACITY - queued.getOrDefault(key, 0);
+    }
+
+    @Override
+    public void getRemainingCapacities(long[] keys, int count, int[] capacities) {
+      sleep(snapshotDelay);
+      PacketQueueSink.super.getRemainingCapacities(keys, count, capacities);
+    }
+
+    @Override
+    public int queuePackets(long key, SocketAddressInfo destination, ByteBuffer[] buffers, int count) {
+      if (!queueOrder.contains(key)) {
+        queueOrder.add(key);
+        sleep(queueDelay);
+      }
+
+      int added = Math.min(count, getRemainingCapacity(key));
+      queued.put(key, queued.getOrDefault(key, 0) + added);
+      return added;
+    }
+
+    @Override
+    public boolean flushQueue(long key) {
+      return queued.put(key, 0) != null;
+    }
+
+    private static void sleep(long milliseconds) {
+      try {
+        Thread.sleep(milliseconds);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static class IdleSendSystem implements AudioSendSystem {
+    @Override
+    public void start() {
+      // Packets are pulled by the test itself.
+    }
+
+    @Override
+    public void shutdown() {
+      // Nothing to do.
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package com.sedmelluq.lava.discord.dispatch.jfr;
+
+import com.sedmelluq.lava.discord.dispatch.metrics.SendMetricsListener;
+import com.sedmelluq.lava.discord.dispatch.metrics.StopReason;
+import com.sedmelluq.lava.discord.dispatch.metrics.StreamMetricsListener;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Records slow populate cycles, provider stalls and queue starvation as JDK Flight Recorder events, so that they can be
+ * lined up with GC pauses and safepoints in the same recording. Each event begins when the operation starts and ends
+ * when it is done. Slow cycles and refills are only committed over the threshold of their event type, which can be
+ * changed in the recording settings. Stalls and starvation are always committed.
+ *
+ * An event is only created when its type is enabled in a recording, otherwise nothing is allocated.
+ */
+@ThreadSafe
+public class JfrSendMetricsListener implements SendMetricsListener {
+  private final ThreadLocal<PopulateCycleEvent> cycleEvents = new ThreadLocal<>();
+
+  @Override
+  public StreamMetricsListener onStreamAdded(long streamId) {
+    return new StreamEvents(streamId);
+  }
+
+  @Override
+  public void onPopulateCycleStarted() {
+    if (PopulateCycleEvent.isRecording()) {
+      PopulateCycleEvent event = new PopulateCycleEvent();
+      event.begin();
+      cycleEvents.set(event);
+    }
+  }
+
+  @Override
+  public void onPopulateCycle(long duration, boolean overrun) {
+    PopulateCycleEvent event = cycleEvents.get();
+
+    if (event != null) {
+      cycleEvents.set(null);
+      event.end();
+
+      if (event.shouldCommit()) {
+        event.overrun = overrun;
+        event.commit();
+      }
+    }
+  }
+
+  /**
+   * Events of one stream in progress. Refills of a stream and calls to its packet provider are each serialized by the
+   * send path, so one event of each kind can be in progress at a time.
+   */
+  @NotThreadSafe
+  private static class StreamEvents implements StreamMetricsListener {
+    private final long streamId;
+    private ProviderStallEvent stallEvent;
+    private StreamPopulateEvent populateEvent;
+    private QueueStarvationEvent starvationEvent;
+
+    private StreamEvents(long streamId) {
+      this.streamId = streamId;
+    }
+
+    @Override
+    public void onProvideStarted() {
+      stallEvent = ProviderStallEvent.isRecording() ? new ProviderStallEvent() : null;
+
+      if (stallEvent != null) {
+        stallEvent.begin();
+      }
+    }
+
+    @Override
+    public void onPacketsProvided(long duration, int packets, StopReason reason) {
+      ProviderStallEvent event = stallEvent;
+      stallEvent = null;
+
+      if (event != null && (reason == StopReason.PROVIDER_EMPTY || reason == StopReason.EXCEPTION)) {
+        event.end();
+        event.streamKey = streamId;
+        event.packets = packets;
+        event.stopReason = reason.name();
+        event.commit();
+      }
+    }
+
+    @Override
+    public void onPopulateStarted() {
+      populateEvent = StreamPopulateEvent.isRecording() ? new StreamPopulateEvent() : null;
+      starvationEvent = QueueStarvationEvent.isRecording() ? new QueueStarvationEvent() : null;
+
+      if (populateEvent != null) {
+        populateEvent.begin();
+      }
+
+      if (starvationEvent != null) {
+        starvationEvent.begin();
+      }
+    }
+
+    @Override
+    public void onStreamPopulated(long duration, int queueDepth, int packets, StopReason reason) {
+      StreamPopulateEvent event = populateEvent;
+      populateEvent = null;
+
+      if (event != null) {
+        event.end();
+
+        if (event.shouldCommit()) {
+          event.streamKey = streamId;
+          event.queueDepth = queueDepth;
+          event.packets = packets;
+          event.stopReason = reason.name();
+          event.commit();
+        }
+      }
+
+      QueueStarvationEvent starvation = starvationEvent;
+      starvationEvent = null;
+
+      if (starvation != null && isStarved(queueDepth, packets, reason)) {
+        starvation.end();
+        starvation.streamKey = streamId;
+        starvation.queueDepth = queueDepth;
+        starvation.packets = packets;
+        starvation.stopReason = reason.name();
+        starvation.commit();
+      }
+    }
+
+    private static boolean isStarved(int queueDepth, int packets, StopReason reason) {
+      return reason == StopReason.EXCEPTION
+          || reason == StopReason.QUEUE_FULL
+          || (queueDepth == 0 && packets > 0);
+    }
+  }
+}
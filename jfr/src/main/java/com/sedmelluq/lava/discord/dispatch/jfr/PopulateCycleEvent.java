@@ -0,0 +1,26 @@
+package com.sedmelluq.lava.discord.dispatch.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("com.sedmelluq.lava.PopulateCycle")
+@Label("Populate Cycle")
+@Description("A populate cycle of a send system which took longer than the threshold")
+@Category({ "Lava", "Audio Send" })
+@StackTrace(false)
+@Threshold("5 ms")
+class PopulateCycleEvent extends jdk.jfr.Event {
+  private static final PopulateCycleEvent PROBE = new PopulateCycleEvent();
+
+  @Label("Overrun")
+  @Description("The cycle took longer than the interval it is run at")
+  boolean overrun;
+
+  static boolean isRecording() {
+    return PROBE.isEnabled();
+  }
+}
@@ -0,0 +1,29 @@
+package com.sedmelluq.lava.discord.dispatch.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.sedmelluq.lava.ProviderStall")
+@Label("Provider Stall")
+@Description("Call to the packet provider of a stream which ran out of frames or failed")
+@Category({ "Lava", "Audio Send" })
+@StackTrace(false)
+class ProviderStallEvent extends jdk.jfr.Event {
+  private static final ProviderStallEvent PROBE = new ProviderStallEvent();
+
+  @Label("Stream Key")
+  long streamKey;
+
+  @Label("Packets")
+  int packets;
+
+  @Label("Stop Reason")
+  String stopReason;
+
+  static boolean isRecording() {
+    return PROBE.isEnabled();
+  }
+}
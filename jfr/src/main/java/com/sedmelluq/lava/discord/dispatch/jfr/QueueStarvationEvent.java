@@ -0,0 +1,33 @@
+package com.sedmelluq.lava.discord.dispatch.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.sedmelluq.lava.QueueStarvation")
+@Label("Queue Starvation")
+@Description("Refill of the queue of one stream which started from an empty queue, hit a full queue or failed")
+@Category({ "Lava", "Audio Send" })
+@StackTrace(false)
+class QueueStarvationEvent extends jdk.jfr.Event {
+  private static final QueueStarvationEvent PROBE = new QueueStarvationEvent();
+
+  @Label("Stream Key")
+  long streamKey;
+
+  @Label("Packets")
+  int packets;
+
+  @Label("Queue Depth")
+  @Description("Packets still in the queue before the refill")
+  int queueDepth;
+
+  @Label("Stop Reason")
+  String stopReason;
+
+  static boolean isRecording() {
+    return PROBE.isEnabled();
+  }
+}
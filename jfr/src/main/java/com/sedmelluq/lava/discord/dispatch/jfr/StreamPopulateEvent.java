@@ -0,0 +1,35 @@
+package com.sedmelluq.lava.discord.dispatch.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("com.sedmelluq.lava.StreamPopulate")
+@Label("Stream Populate")
+@Description("Refill of the queue of one stream which took longer than the threshold")
+@Category({ "Lava", "Audio Send" })
+@StackTrace(false)
+@Threshold("1 ms")
+class StreamPopulateEvent extends jdk.jfr.Event {
+  private static final StreamPopulateEvent PROBE = new StreamPopulateEvent();
+
+  @Label("Stream Key")
+  long streamKey;
+
+  @Label("Packets")
+  int packets;
+
+  @Label("Queue Depth")
+  @Description("Packets still in the queue before the refill")
+  int queueDepth;
+
+  @Label("Stop Reason")
+  String stopReason;
+
+  static boolean isRecording() {
+    return PROBE.isEnabled();
+  }
+}
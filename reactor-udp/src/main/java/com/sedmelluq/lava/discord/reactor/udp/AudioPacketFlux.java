@@ -0,0 +1,103 @@
+package com.sedmelluq.lava.discord.reactor.udp;
+
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketProvider;
+import org.xnio.XnioExecutor;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+public class AudioPacketFlux {
+  private static final int PACKET_BUFFER_SIZE = 1024;
+
+  /**
+   * Creates a flux of packets paced at the packet interval. Each tick takes a packet from the provider only if there
+   * is demand for it, so a subscriber which cannot keep up leaves the audio in the frame provider instead of having it
+   * queued or dropped. The same buffer is emitted for every packet, it is only valid until the next request.
+   *
+   * @param packetProvider Provider to take the packets from
+   * @param executor Executor to run the ticks on, such as the IO thread of the channel the packets are sent with
+   * @param packetInterval Time interval between packets in milliseconds
+   * @return Flux of packets, each buffer positioned at the start of the packet and limited at its end
+   */
+  public static Flux<ByteBuffer> create(AudioPacketProvider packetProvider, XnioExecutor executor, int packetInterval) {
+    return Flux.create(sink -> {
+      PacedEmitter emitter = new PacedEmitter(sink, packetProvider, executor,
+          TimeUnit.MILLISECONDS.toNanos(packetInterval));
+
+      sink.onDispose(emitter::stop);
+      emitter.start();
+    }, FluxSink.OverflowStrategy.IGNORE);
+  }
+
+  /**
+   * Schedules each tick on its own, at a fixed number of packet intervals from the start, so that the timer waking up
+   * late does not add up to drift. The executor only has millisecond precision, so each delay is rounded up.
+   */
+  private static class PacedEmitter implements Runnable {
+    private final FluxSink<ByteBuffer> sink;
+    private final AudioPacketProvider packetProvider;
+    private final XnioExecutor executor;
+    private final long packetInterval;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(PACKET_BUFFER_SIZE);
+    private volatile XnioExecutor.Key key;
+    private long start;
+    private long tick;
+
+    private PacedEmitter(FluxSink<ByteBuffer> sink, AudioPacketProvider packetProvider, XnioExecutor executor,
+                         long packetInterval) {
+
+      this.sink = sink;
+      this.packetProvider = packetProvider;
+      this.executor = executor;
+      this.packetInterval = packetInterval;
+    }
+
+    private void start() {
+      start = System.nanoTime();
+      key = executor.executeAfter(this, 0, TimeUnit.MILLISECONDS);
+    }
+
+    private void stop() {
+      XnioExecutor.Key currentKey = key;
+
+      if (currentKey != null) {
+        currentKey.remove();
+      }
+    }
+
+    @Override
+    public void run() {
+      if (sink.isCancelled()) {
+        return;
+      }
+
+      emitPacket();
+      tick++;
+
+      long delay = start + tick * packetInterval - System.nanoTime();
+
+      if (delay < -packetInterval) {
+        // Fell behind by more than a whole interval, catching up would send a burst of packets.
+        start -= delay;
+        delay = 0;
+      }
+
+      key = executor.executeAfter(this, (Math.max(0, delay) + 999999) / 1000000, TimeUnit.MILLISECONDS);
+    }
+
+    private void emitPacket() {
+      if (sink.requestedFromDownstream() == 0) {
+        return;
+      }
+
+      buffer.clear();
+
+      if (packetProvider.providePacket(buffer, true)) {
+        buffer.flip();
+        sink.next(buffer);
+      }
+    }
+  }
+}
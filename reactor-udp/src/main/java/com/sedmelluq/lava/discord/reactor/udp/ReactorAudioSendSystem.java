@@ -0,0 +1,69 @@
+package com.sedmelluq.lava.discord.reactor.udp;
+
+import com.sedmelluq.lava.discord.dispatch.AudioSendSystem;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketProvider;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Sends the packets of one stream through the channel its factory shares between streams, paced on the IO thread of
+ * that channel.
+ */
+public class ReactorAudioSendSystem implements AudioSendSystem {
+  private final ReactorAudioSendSystemFactory sendSystemFactory;
+  private final AudioPacketProvider packetProvider;
+  private final int packetInterval;
+  private final Object lock = new Object();
+  private SharedUdpChannel channel;
+  private UdpPacketSender sender;
+
+  public ReactorAudioSendSystem(ReactorAudioSendSystemFactory sendSystemFactory, AudioPacketProvider packetProvider,
+                                int packetInterval) {
+
+    this.sendSystemFactory = sendSystemFactory;
+    this.packetProvider = packetProvider;
+    this.packetInterval = packetInterval;
+  }
+
+  @Override
+  public void start() {
+    synchronized (lock) {
+      if (channel != null) {
+        return;
+      }
+
+      InetSocketAddress targetAddress = packetProvider.getAddressInfo().socketAddress;
+
+      try {
+        channel = sendSystemFactory.acquireChannel(targetAddress);
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to create a channel for sending to " + targetAddress, e);
+      }
+
+      UdpPacketSender currentSender = new UdpPacketSender(channel, targetAddress);
+      SharedUdpChannel currentChannel = channel;
+      sender = currentSender;
+
+      // The sender shares the channel with other streams, so it must only ever be used from its IO thread.
+      currentChannel.getIoThread().execute(() -> {
+        if (!currentSender.isDisposed()) {
+          AudioPacketFlux.create(packetProvider, currentChannel.getIoThread(), packetInterval).subscribe(currentSender);
+        }
+      });
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    synchronized (lock) {
+      if (channel != null) {
+        sender.dispose();
+        sendSystemFactory.releaseChannel(channel);
+
+        channel = null;
+        sender = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package com.sedmelluq.lava.discord.reactor.udp;
+
+import com.sedmelluq.lava.discord.dispatch.AudioSendSystem;
+import com.sedmelluq.lava.discord.dispatch.AudioSendSystemFactory;
+import com.sedmelluq.lava.discord.dispatch.packet.AudioPacketProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xnio.XnioWorker;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Send system factory which sends the packets over XNIO channels, sharing the IO threads of the worker with the rest of
+ * the application instead of running threads of its own. Explicit source socket handles are not supported. All streams
+ * send through one channel per address family, which is opened for the first stream and closed after the last one.
+ */
+public class ReactorAudioSendSystemFactory implements AudioSendSystemFactory {
+  private static final Logger log = LoggerFactory.getLogger(ReactorAudioSendSystemFactory.class);
+
+  private static final int PACKET_INTERVAL = 20;
+
+  private final UdpChannelFactory channelFactory;
+  private final Object lock = new Object();
+  private final SharedUdpChannel[] channels = new SharedUdpChannel[2];
+  private final int[] channelUsers = new int[2];
+
+  public ReactorAudioSendSystemFactory(XnioWorker xnioWorker) {
+    this.channelFactory = new UdpChannelFactory(xnioWorker);
+  }
+
+  @Override
+  public AudioSendSystem create(AudioPacketProvider packetProvider) {
+    return new ReactorAudioSendSystem(this, packetProvider, PACKET_INTERVAL);
+  }
+
+  /**
+   * @param targetAddress Address the packets are sent to
+   * @return Channel for the address family of the target address, to be released once the stream stops sending
+   */
+  SharedUdpChannel acquireChannel(InetSocketAddress targetAddress) throws IOException {
+    boolean ipv6 = targetAddress.getAddress().getAddress().length != 4;
+    int index = ipv6 ? 1 : 0;
+
+    synchronized (lock) {
+      if (channels[index] == null) {
+        channels[index] = new SharedUdpChannel(channelFactory.create(ipv6));
+      }
+
+      channelUsers[index]++;
+      return channels[index];
+    }
+  }
+
+  void releaseChannel(SharedUdpChannel channel) {
+    synchronized (lock) {
+      for (int i = 0; i < channels.length; i++) {
+        if (channels[i] == channel && --channelUsers[i] == 0) {
+          channels[i] = null;
+          closeChannel(channel);
+        }
+      }
+    }
+  }
+
+  private static void closeChannel(SharedUdpChannel channel) {
+    try {
+      channel.getChannel().close();
+    } catch (IOException e) {
+      log.error("Failed to close {}.", channel.getChannel(), e);
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package com.sedmelluq.lava.discord.reactor.udp;
+
+import org.xnio.XnioIoThread;
+import org.xnio.channels.MulticastMessageChannel;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Channel which the senders of many streams send their packets through. The channel has only one write listener, so
+ * the senders which wait for it to become writable again are queued here and resumed in order. Only used from the IO
+ * thread of the channel.
+ */
+@NotThreadSafe
+public class SharedUdpChannel {
+  private final MulticastMessageChannel channel;
+  private final Queue<UdpPacketSender> waitingSenders = new ArrayDeque<>();
+
+  public SharedUdpChannel(MulticastMessageChannel channel) {
+    this.channel = channel;
+
+    channel.getWriteSetter().set(writableChannel -> onWritable());
+  }
+
+  public MulticastMessageChannel getChannel() {
+    return channel;
+  }
+
+  public XnioIoThread getIoThread() {
+    return channel.getIoThread();
+  }
+
+  /**
+   * @param sender Sender to resume once the channel is writable again
+   */
+  void awaitWritable(UdpPacketSender sender) {
+    waitingSenders.add(sender);
+    channel.resumeWrites();
+  }
+
+  private void onWritable() {
+    channel.suspendWrites();
+
+    // A sender which fails to send again waits at the end of the queue and writes are resumed, so stop right there.
+    for (int count = waitingSenders.size(); count > 0; count--) {
+      if (!waitingSenders.remove().sendPending()) {
+        break;
+      }
+    }
+  }
+}
@@ -0,0 +1,258 @@
+package com.sedmelluq.lava.discord.reactor.udp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xnio.XnioWorker;
+import org.xnio.channels.MulticastMessageChannel;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Performs UDP discovery for many connections through one long-lived channel per address family, instead of opening a
+ * channel for each request. Replies are matched to requests by the SSRC in their first four bytes, so discoveries for
+ * the same SSRC which overlap share one request and its result. Each attempt times out on its own and is retried by
+ * sending the request again.
+ *
+ * With a cache, a discovery for a voice server which already has a result from the same channel completes immediately
+ * with it, and the result is revalidated in the background.
+ */
+public class SharedUdpDiscovery implements AutoCloseable {
+  private static final Logger log = LoggerFactory.getLogger(SharedUdpDiscovery.class);
+
+  private static final int MESSAGE_SIZE = 70;
+  private static final int BUFFER_POOL_SIZE = 64;
+  private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(2);
+  private static final int DEFAULT_ATTEMPTS = 3;
+
+  private final UdpChannelFactory channelFactory;
+  private final Duration attemptTimeout;
+  private final int attempts;
+  private final UdpDiscoveryCache cache;
+  private final ConcurrentMap<Integer, Mono<InetSocketAddress>> discoveries = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Integer, MonoSink<InetSocketAddress>> pendingRequests = new ConcurrentHashMap<>();
+  private final BlockingQueue<ByteBuffer> bufferPool = new ArrayBlockingQueue<>(BUFFER_POOL_SIZE);
+  private final Object lock = new Object();
+  private MulticastMessageChannel ipv4Channel;
+  private MulticastMessageChannel ipv6Channel;
+  private boolean closed;
+
+  public SharedUdpDiscovery(XnioWorker xnioWorker) {
+    this(xnioWorker, DEFAULT_TIMEOUT, DEFAULT_ATTEMPTS);
+  }
+
+  /**
+   * @param xnioWorker Worker to create the channels with
+   * @param attemptTimeout Time to wait for a reply to one request
+   * @param attempts Number of times to send the request before failing with a timeout
+   */
+  public SharedUdpDiscovery(XnioWorker xnioWorker, Duration attemptTimeout, int attempts) {
+    this(xnioWorker, attemptTimeout, attempts, null);
+  }
+
+  /**
+   * @param xnioWorker Worker to create the channels with
+   * @param attemptTimeout Time to wait for a reply to one request
+   * @param attempts Number of times to send the request before failing with a timeout
+   * @param cache Cache for discovery results, null to always perform the discovery
+   */
+  public SharedUdpDiscovery(XnioWorker xnioWorker, Duration attemptTimeout, int attempts, UdpDiscoveryCache cache) {
+    if (attempts < 1) {
+      throw new IllegalArgumentException("Attempt count must be at least 1.");
+    }
+
+    this.channelFactory = new UdpChannelFactory(xnioWorker);
+    this.attemptTimeout = attemptTimeout;
+    this.attempts = attempts;
+    this.cache = cache;
+  }
+
+  public Mono<InetSocketAddress> handleUdpDiscovery(InetSocketAddress targetAddress, int ssrc) {
+    if (cache == null) {
+      return discover(targetAddress, ssrc);
+    }
+
+    return Mono.defer(() -> {
+      SocketAddress localAddress;
+
+      try {
+        localAddress = getChannel(targetAddress).getLocalAddress();
+      } catch (Exception e) {
+        return Mono.error(e);
+      }
+
+      InetSocketAddress cachedAddress = cache.get(targetAddress, localAddress);
+
+      if (cachedAddress != null) {
+        revalidate(targetAddress, localAddress, ssrc);
+        return Mono.just(cachedAddress);
+      }
+
+      return discover(targetAddress, ssrc)
+          .doOnNext(externalAddress -> cache.put(targetAddress, localAddress, externalAddress));
+    });
+  }
+
+  @Override
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+
+      closeChannel(ipv4Channel);
+      closeChannel(ipv6Channel);
+      ipv4Channel = null;
+      ipv6Channel = null;
+    }
+
+    for (Integer ssrc : pendingRequests.keySet()) {
+      MonoSink<InetSocketAddress> sink = pendingRequests.remove(ssrc);
+
+      if (sink != null) {
+        sink.error(new IllegalStateException("Discovery was closed."));
+      }
+    }
+  }
+
+  private void revalidate(InetSocketAddress targetAddress, SocketAddress localAddress, int ssrc) {
+    discover(targetAddress, ssrc).subscribe(
+        externalAddress -> cache.put(targetAddress, localAddress, externalAddress),
+        error -> log.debug("Revalidating discovery result for {} failed.", targetAddress, error)
+    );
+  }
+
+  private Mono<InetSocketAddress> discover(InetSocketAddress targetAddress, int ssrc) {
+    // A background revalidation and a discovery by the user for the same SSRC join the same request, which keeps going
+    // until it completes even if one of them cancels.
+    return Mono.defer(() -> discoveries.computeIfAbsent(ssrc, key -> sendRequestWithRetries(targetAddress, key)
+        .doFinally(signal -> discoveries.remove(key))
+        .cache()));
+  }
+
+  private Mono<InetSocketAddress> sendRequestWithRetries(InetSocketAddress targetAddress, int ssrc) {
+    return Mono.<InetSocketAddress>create(sink -> sendRequest(sink, targetAddress, ssrc))
+        .timeout(attemptTimeout)
+        .retry(attempts - 1, error -> error instanceof TimeoutException);
+  }
+
+  private void sendRequest(MonoSink<InetSocketAddress> sink, InetSocketAddress targetAddress, int ssrc) {
+    if (pendingRequests.putIfAbsent(ssrc, sink) != null) {
+      sink.error(new IllegalStateException("Discovery for SSRC " + ssrc + " is already in progress."));
+      return;
+    }
+
+    sink.onDispose(() -> pendingRequests.remove(ssrc, sink));
+
+    ByteBuffer buffer = takeBuffer();
+
+    try {
+      buffer.putInt(0, ssrc);
+
+      if (!getChannel(targetAddress).sendTo(targetAddress, buffer)) {
+        // Not writable right now, the attempt times out and the request is sent again.
+        log.debug("Channel not writable, discovery request for SSRC {} not sent.", ssrc);
+      }
+    } catch (Exception e) {
+      sink.error(e);
+    } finally {
+      returnBuffer(buffer);
+    }
+  }
+
+  private MulticastMessageChannel getChannel(InetSocketAddress targetAddress) throws IOException {
+    boolean ipv6 = targetAddress.getAddress().getAddress().length != 4;
+
+    synchronized (lock) {
+      if (closed) {
+        throw new IllegalStateException("Discovery was closed.");
+      }
+
+      MulticastMessageChannel channel = ipv6 ? ipv6Channel : ipv4Channel;
+
+      if (channel == null) {
+        channel = channelFactory.create(ipv6);
+        channel.getReadSetter().set(this::handleReplies);
+        channel.resumeReads();
+
+        if (ipv6) {
+          ipv6Channel = channel;
+        } else {
+          ipv4Channel = channel;
+        }
+      }
+
+      return channel;
+    }
+  }
+
+  private void handleReplies(MulticastMessageChannel channel) {
+    ByteBuffer buffer = takeBuffer();
+
+    try {
+      while (channel.receiveFrom(null, buffer) > 0) {
+        handleReply(buffer);
+        buffer.clear();
+      }
+    } catch (IOException e) {
+      log.debug("Failed to receive discovery replies.", e);
+    } finally {
+      returnBuffer(buffer);
+    }
+  }
+
+  private void handleReply(ByteBuffer buffer) {
+    if (buffer.position() != MESSAGE_SIZE) {
+      log.debug("Ignoring discovery reply of {} bytes.", buffer.position());
+      return;
+    }
+
+    MonoSink<InetSocketAddress> sink = pendingRequests.remove(buffer.getInt(0));
+
+    if (sink != null) {
+      try {
+        sink.success(UdpDiscovery.extractAddressFromMessage(buffer));
+      } catch (Exception e) {
+        sink.error(e);
+      }
+    }
+  }
+
+  private ByteBuffer takeBuffer() {
+    ByteBuffer buffer = bufferPool.poll();
+
+    if (buffer == null) {
+      buffer = ByteBuffer.allocate(MESSAGE_SIZE);
+    }
+
+    buffer.clear();
+    return buffer;
+  }
+
+  private void returnBuffer(ByteBuffer buffer) {
+    // Requests are sent with the whole buffer, so clear what the previous user left in it.
+    for (int i = 0; i < MESSAGE_SIZE; i++) {
+      buffer.put(i, (byte) 0);
+    }
+
+    bufferPool.offer(buffer);
+  }
+
+  private static void closeChannel(MulticastMessageChannel channel) {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.error("Failed to close {}.", channel, e);
+      }
+    }
+  }
+}
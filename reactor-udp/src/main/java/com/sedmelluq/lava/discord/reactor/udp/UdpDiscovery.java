@@ -65,7 +65,7 @@ public class UdpDiscovery {
     }
   }
 
-  private static InetSocketAddress extractAddressFromMessage(ByteBuffer message) {
+  static InetSocketAddress extractAddressFromMessage(ByteBuffer message) {
     int ipEnd = 4;
 
     while (message.get(ipEnd) != 0 && ipEnd < 68) {
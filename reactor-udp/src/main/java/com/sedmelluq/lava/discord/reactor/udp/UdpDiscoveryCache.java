@@ -0,0 +1,146 @@
+package com.sedmelluq.lava.discord.reactor.udp;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of discovered external addresses, keyed by the address of the voice server and the local address the discovery
+ * was sent from. Entries expire after a fixed time, and once the cache is full the least recently used entry is
+ * evicted.
+ */
+@ThreadSafe
+public class UdpDiscoveryCache {
+  private final long timeToLive;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  @GuardedBy("entries")
+  private final LinkedHashMap<Key, CachedAddress> entries;
+
+  /**
+   * @param timeToLive Time after which an entry is no longer used
+   * @param maximumSize Maximum number of entries
+   */
+  public UdpDiscoveryCache(Duration timeToLive, int maximumSize) {
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException("Maximum size must be at least 1.");
+    }
+
+    this.timeToLive = timeToLive.toNanos();
+    this.entries = new LinkedHashMap<Key, CachedAddress>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, CachedAddress> eldest) {
+        return size() > maximumSize;
+      }
+    };
+  }
+
+  /**
+   * @param targetAddress Address of the voice server
+   * @param localAddress Local address the discovery is sent from
+   * @return The cached external address, null if there is none or it has expired
+   */
+  public InetSocketAddress get(InetSocketAddress targetAddress, SocketAddress localAddress) {
+    Key key = new Key(targetAddress, localAddress);
+    CachedAddress entry;
+
+    synchronized (entries) {
+      entry = entries.get(key);
+
+      if (entry != null && System.nanoTime() - entry.time >= timeToLive) {
+        entries.remove(key);
+        entry = null;
+      }
+    }
+
+    if (entry != null) {
+      hitCount.incrementAndGet();
+      return entry.externalAddress;
+    } else {
+      missCount.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * @param targetAddress Address of the voice server
+   * @param localAddress Local address the discovery was sent from
+   * @param externalAddress Discovered external address
+   */
+  public void put(InetSocketAddress targetAddress, SocketAddress localAddress, InetSocketAddress externalAddress) {
+    CachedAddress entry = new CachedAddress(externalAddress, System.nanoTime());
+
+    synchronized (entries) {
+      entries.put(new Key(targetAddress, localAddress), entry);
+    }
+  }
+
+  public void invalidate(InetSocketAddress targetAddress, SocketAddress localAddress) {
+    synchronized (entries) {
+      entries.remove(new Key(targetAddress, localAddress));
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return Number of lookups which found an entry
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return Number of lookups which did not find an entry, including those which found only an expired one
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  private static class Key {
+    private final InetSocketAddress targetAddress;
+    private final SocketAddress localAddress;
+
+    private Key(InetSocketAddress targetAddress, SocketAddress localAddress) {
+      this.targetAddress = targetAddress;
+      this.localAddress = localAddress;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      } else if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key other = (Key) o;
+      return targetAddress.equals(other.targetAddress) && Objects.equals(localAddress, other.localAddress);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * targetAddress.hashCode() + Objects.hashCode(localAddress);
+    }
+  }
+
+  private static class CachedAddress {
+    private final InetSocketAddress externalAddress;
+    private final long time;
+
+    private CachedAddress(InetSocketAddress externalAddress, long time) {
+      this.externalAddress = externalAddress;
+      this.time = time;
+    }
+  }
+}
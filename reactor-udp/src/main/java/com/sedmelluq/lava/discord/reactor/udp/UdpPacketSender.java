@@ -0,0 +1,69 @@
+package com.sedmelluq.lava.discord.reactor.udp;
+
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.BaseSubscriber;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends the packets it receives to one address. Requests one packet at a time, and when the channel is not writable,
+ * holds on to the packet and only requests the next one once it has been sent. Must be subscribed on the IO thread of
+ * the channel, as the channel is shared with the senders of other streams without any locking.
+ */
+public class UdpPacketSender extends BaseSubscriber<ByteBuffer> {
+  private static final Logger log = LoggerFactory.getLogger(UdpPacketSender.class);
+
+  private final SharedUdpChannel channel;
+  private final InetSocketAddress targetAddress;
+  private ByteBuffer pendingPacket;
+
+  public UdpPacketSender(SharedUdpChannel channel, InetSocketAddress targetAddress) {
+    this.channel = channel;
+    this.targetAddress = targetAddress;
+  }
+
+  @Override
+  protected void hookOnSubscribe(Subscription subscription) {
+    request(1);
+  }
+
+  @Override
+  protected void hookOnNext(ByteBuffer packet) {
+    if (send(packet)) {
+      request(1);
+    } else {
+      pendingPacket = packet;
+      channel.awaitWritable(this);
+    }
+  }
+
+  /**
+   * Called by the channel once it is writable again.
+   *
+   * @return False if the channel was still not writable, the sender is then waiting again
+   */
+  boolean sendPending() {
+    ByteBuffer packet = pendingPacket;
+    pendingPacket = null;
+
+    if (packet == null || isDisposed()) {
+      return true;
+    }
+
+    hookOnNext(packet);
+    return pendingPacket == null;
+  }
+
+  private boolean send(ByteBuffer packet) {
+    try {
+      return channel.getChannel().sendTo(targetAddress, packet);
+    } catch (IOException e) {
+      log.debug("Failed to send a packet to {}.", targetAddress, e);
+      return true;
+    }
+  }
+}
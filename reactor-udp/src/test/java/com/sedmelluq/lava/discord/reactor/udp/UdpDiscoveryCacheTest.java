@@ -0,0 +1,94 @@
+package com.sedmelluq.lava.discord.reactor.udp;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class UdpDiscoveryCacheTest {
+  private static final InetSocketAddress LOCAL = new InetSocketAddress("127.0.0.1", 40000);
+  private static final InetSocketAddress OTHER_LOCAL = new InetSocketAddress("127.0.0.1", 40001);
+
+  @Test
+  public void returnsEntryForSameServerAndLocalAddress() {
+    UdpDiscoveryCache cache = new UdpDiscoveryCache(Duration.ofMinutes(1), 10);
+    cache.put(server(1), LOCAL, external(1));
+
+    assertEquals(external(1), cache.get(server(1), LOCAL));
+    assertNull(cache.get(server(1), OTHER_LOCAL));
+    assertNull(cache.get(server(2), LOCAL));
+  }
+
+  @Test
+  public void expiresEntriesAfterTimeToLive() throws InterruptedException {
+    UdpDiscoveryCache cache = new UdpDiscoveryCache(Duration.ofMillis(50), 10);
+    cache.put(server(1), LOCAL, external(1));
+    assertEquals(external(1), cache.get(server(1), LOCAL));
+
+    Thread.sleep(100);
+
+    assertNull(cache.get(server(1), LOCAL));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedEntryWhenFull() {
+    UdpDiscoveryCache cache = new UdpDiscoveryCache(Duration.ofMinutes(1), 2);
+    cache.put(server(1), LOCAL, external(1));
+    cache.put(server(2), LOCAL, external(2));
+
+    // Reading the first entry makes the second one the least recently used.
+    cache.get(server(1), LOCAL);
+    cache.put(server(3), LOCAL, external(3));
+
+    assertEquals(2, cache.size());
+    assertEquals(external(1), cache.get(server(1), LOCAL));
+    assertNull(cache.get(server(2), LOCAL));
+    assertEquals(external(3), cache.get(server(3), LOCAL));
+  }
+
+  @Test
+  public void countsHitsAndMisses() throws InterruptedException {
+    UdpDiscoveryCache cache = new UdpDiscoveryCache(Duration.ofMillis(50), 10);
+    cache.get(server(1), LOCAL);
+    cache.put(server(1), LOCAL, external(1));
+    cache.get(server(1), LOCAL);
+    cache.get(server(1), LOCAL);
+
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+
+    // An expired entry counts as a miss.
+    Thread.sleep(100);
+    cache.get(server(1), LOCAL);
+
+    assertEquals(2, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void invalidatesEntry() {
+    UdpDiscoveryCache cache = new UdpDiscoveryCache(Duration.ofMinutes(1), 10);
+    cache.put(server(1), LOCAL, external(1));
+    cache.invalidate(server(1), LOCAL);
+
+    assertNull(cache.get(server(1), LOCAL));
+    assertEquals(0, cache.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsMaximumSizeBelowOne() {
+    new UdpDiscoveryCache(Duration.ofMinutes(1), 0);
+  }
+
+  private static InetSocketAddress server(int index) {
+    return new InetSocketAddress("10.0.0." + index, 50000);
+  }
+
+  private static InetSocketAddress external(int index) {
+    return new InetSocketAddress("192.0.2." + index, 30000 + index);
+  }
+}